@@ -0,0 +1,64 @@
+package dot.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of rendering a CFG with a given number of blocks, every fourth
+ * block being a branch.
+ * @author juniocezar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DotGraphBenchmark {
+  @Param({"100", "5000"})
+  public int blocks;
+
+  private DotGraph graph;
+  private File output;
+
+  @Setup
+  public void setup () throws IOException {
+    output = File.createTempFile("bench", ".dot");
+    graph = new DotGraph("bench", "Bench", "method", output.getPath());
+    List<String> lines = new ArrayList<String>();
+    lines.add("$i0 = virtualinvoke r0.<Bench: int next()>()");
+    lines.add("if $i0 >= 10 goto label1");
+    for (int i = 0; i < blocks; i++) {
+      boolean ifNode = i % 4 == 0;
+      List<String> succs = new ArrayList<String>();
+      if (i + 1 < blocks) {
+        succs.add("B" + (i + 1));
+      }
+      if (ifNode && i + 2 < blocks) {
+        succs.add("B" + (i + 2));
+      }
+      graph.newNode(lines, "B" + i, "", "record", "black",
+          succs.isEmpty() ? Collections.<String>emptyList() : succs, ifNode);
+    }
+  }
+
+  @Benchmark
+  public void genDotFile () throws IOException {
+    graph.genDotFile();
+  }
+}
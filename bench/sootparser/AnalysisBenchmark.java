@@ -0,0 +1,91 @@
+package sootparser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.CallGraph;
+
+/**
+ * Throughput of the extraction and propagation phases over synthetic
+ * programs. Run with -prof gc to also get allocation rates.
+ * @author juniocezar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalysisBenchmark {
+    @Param({"LOOPS", "FANOUT", "RECURSION"})
+    public SyntheticProgram.Shape shape;
+
+    @Param({"8", "64"})
+    public int size;
+
+    private CallGraph cg;
+    private List<SootMethod> methods;
+    private StaticAnalyzer analyzer;
+
+    @Setup
+    public void setup () throws IOException {
+        cg = SyntheticProgram.load(SyntheticProgram.compile(shape, size));
+        methods = new ArrayList<SootMethod>();
+        for (SootClass sclass : Scene.v().getApplicationClasses()) {
+            for (SootMethod sm : sclass.getMethods()) {
+                if (sm.isConcrete()) {
+                    sm.retrieveActiveBody();
+                    methods.add(sm);
+                }
+            }
+        }
+        analyzer = new StaticAnalyzer(cg);
+        analyzer.generalFeatureExtraction(null);
+    }
+
+    @Benchmark
+    public void featuresConstruction (Blackhole bh) {
+        LoopDepthIndex.v().clear();
+        for (SootMethod sm : methods) {
+            bh.consume(new Features(sm));
+        }
+    }
+
+    @Benchmark
+    public void calculateInstructionDepth (Blackhole bh) {
+        LoopDepthIndex.v().clear();
+        for (SootMethod sm : methods) {
+            bh.consume(LoopDepthIndex.v().depths(sm));
+        }
+    }
+
+    @Benchmark
+    public void propagateFeatures () {
+        analyzer.propagateFeatures();
+    }
+
+    /**
+     * Edges added by the first invocation are already present afterwards,
+     * so this measures the steady state of the worklist scan.
+     */
+    @Benchmark
+    public void extendCallGraph () {
+        SootDriver.extendCallGraph(cg);
+    }
+}
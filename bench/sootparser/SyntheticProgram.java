@@ -0,0 +1,139 @@
+package sootparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import soot.G;
+import soot.PackManager;
+import soot.Scene;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.options.Options;
+
+/**
+ * Generates synthetic programs of a given shape and size, compiles them
+ * and loads them into a fresh Soot Scene, so benchmarks run over inputs
+ * that scale predictably.
+ * @author juniocezar
+ */
+public class SyntheticProgram {
+    public static final String MAIN_CLASS = "Synthetic";
+
+    public enum Shape {
+        /** method k holds k nested loops around a call */
+        LOOPS,
+        /** main calls size methods, each calling the same size leaves */
+        FANOUT,
+        /** a ring of size methods calling each other inside a loop */
+        RECURSION
+    }
+
+    /**
+     * @param shape Shape of the call graph.
+     * @param size Number of methods, loops or edges, depending on the shape.
+     * @return Java source of the program, a single class.
+     */
+    public static String source (Shape shape, int size) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("public class ").append(MAIN_CLASS).append(" {\n");
+        sb.append("  static int sink;\n");
+        sb.append("  static void leaf(int i) { sink += i; }\n");
+        sb.append("  public static void main(String[] args) {\n");
+        switch (shape) {
+            case LOOPS:
+            case FANOUT:
+                for (int i = 0; i < size; i++) {
+                    sb.append("    m").append(i).append("(args.length);\n");
+                }
+                break;
+            case RECURSION:
+                sb.append("    m0(args.length);\n");
+                break;
+        }
+        sb.append("  }\n");
+
+        for (int i = 0; i < size; i++) {
+            sb.append("  static void m").append(i).append("(int n) {\n");
+            switch (shape) {
+                case LOOPS:
+                    for (int d = 0; d <= i; d++) {
+                        sb.append("    for (int i").append(d).append(" = 0; i").append(d)
+                          .append(" < n; i").append(d).append("++)\n");
+                    }
+                    sb.append("      leaf(n);\n");
+                    break;
+                case FANOUT:
+                    for (int j = 0; j < size; j++) {
+                        sb.append("    g").append(j).append("(n);\n");
+                    }
+                    break;
+                case RECURSION:
+                    sb.append("    for (int i = 0; i < n; i++) {\n");
+                    sb.append("      leaf(i);\n");
+                    sb.append("      if (i > sink) m").append((i + 1) % size).append("(n - 1);\n");
+                    sb.append("    }\n");
+                    break;
+            }
+            sb.append("  }\n");
+            if (shape == Shape.FANOUT) {
+                sb.append("  static void g").append(i).append("(int n) { leaf(n); }\n");
+            }
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Writes and compiles a synthetic program into a temporary directory.
+     * @param shape Shape of the call graph.
+     * @param size Size of the program.
+     * @return Directory holding the compiled classes.
+     */
+    public static File compile (Shape shape, int size) throws IOException {
+        File dir = Files.createTempDirectory("synthetic-" + shape + "-" + size).toFile();
+        File src = new File(dir, MAIN_CLASS + ".java");
+        Files.write(src.toPath(), source(shape, size).getBytes(StandardCharsets.UTF_8));
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("Benchmarks must run on a JDK, no compiler found");
+        }
+        if (javac.run(null, null, null, "-source", "1.8", "-target", "1.8",
+                "-d", dir.getPath(), src.getPath()) != 0) {
+            throw new IllegalStateException("Could not compile " + src);
+        }
+        return dir;
+    }
+
+    /**
+     * Loads a compiled program into a fresh Scene and builds its call graph.
+     * The JDK classes are taken from the bench.rt property, which defaults
+     * to the rt.jar of the running JVM.
+     * @param classes Directory holding the compiled classes.
+     * @return Call Graph of the program.
+     */
+    public static CallGraph load (File classes) {
+        G.reset();
+        LoopDepthIndex.v().clear();
+        String rt = System.getProperty("bench.rt",
+            System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar");
+
+        Options.v().set_whole_program(true);
+        Options.v().set_allow_phantom_refs(true);
+        Options.v().set_src_prec(Options.src_prec_class);
+        Options.v().set_output_format(Options.output_format_none);
+        Options.v().set_no_bodies_for_excluded(true);
+        Options.v().set_soot_classpath(classes.getPath() + File.pathSeparator + rt);
+        Options.v().set_process_dir(Collections.singletonList(classes.getPath()));
+        Options.v().set_main_class(MAIN_CLASS);
+        Options.v().setPhaseOption("jb", "use-original-names:true");
+        Options.v().setPhaseOption("cg.cha", "on");
+
+        Scene.v().loadNecessaryClasses();
+        PackManager.v().getPack("cg").apply();
+        return Scene.v().getCallGraph();
+    }
+}
@@ -0,0 +1,126 @@
+package dot.graph;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* a call graph: methods annotated with their invocation counts and calls
+   weighted by the loop depth of their call sites */
+public class CallGraphDot {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private String title;
+  private List<String[]> nodes;
+  private List<long[]> counts;
+  private List<String[]> edges;
+  private List<long[]> weights;
+
+  public CallGraphDot (String title) {
+    this.title = title;
+    nodes = new ArrayList<String[]>();
+    counts = new ArrayList<long[]>();
+    edges = new ArrayList<String[]>();
+    weights = new ArrayList<long[]>();
+  }
+
+  /* a method with its static and estimated dynamic invocations, the hotter
+     it is the redder it is filled */
+  public void newNode (String id, String signature, long staticCount, long dynamicCount) {
+    nodes.add(new String[] { id, signature });
+    counts.add(new long[] { staticCount, dynamicCount });
+  }
+
+  /* a method described elsewhere, e.g. in another shard of the graph */
+  public void newStub (String id, String signature, String where) {
+    nodes.add(new String[] { id, signature, where });
+    counts.add(null);
+  }
+
+  /* calls from one method to another, at the given maximum loop depth,
+     weighing their estimated executions; async calls start a task on
+     another thread and are dashed */
+  public void newEdge (String from, String to, int depth, long weight, boolean async) {
+    edges.add(new String[] { from, to });
+    weights.add(new long[] { depth, weight, async ? 1 : 0 });
+  }
+
+  public int size () {
+    return nodes.size();
+  }
+
+  public void genDotFile (String outfile) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(outfile), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(channel);
+    }
+  }
+
+  public void write (WritableByteChannel channel) throws IOException {
+    StringBuilder out = new StringBuilder(BUFFER_SIZE);
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    long hottest = 1;
+    for (long[] count : counts)
+      if (count != null)
+        hottest = Math.max(hottest, count[1]);
+
+    out.append("digraph \"").append(title).append("\" {\n");
+    out.append("\tnode [shape=box, style=filled, fontsize=10];\n");
+
+    /* printing nodes */
+    for (int i = 0; i < nodes.size(); i++) {
+      String[] node = nodes.get(i);
+      long[] count = counts.get(i);
+      out.append("\t").append(node[0]).append(" [label=\"");
+      escape(node[1], out);
+      if (count == null) {
+        out.append("\\n(").append(node[2]).append(")\", style=dashed];\n");
+      } else {
+        out.append("\\nstatic: ").append(count[0]).append("  dynamic: ").append(count[1]);
+        // log scale, so a single hot method does not wash out the others
+        double heat = Math.log1p(count[1]) / Math.log1p(hottest);
+        out.append("\", fillcolor=\"0.000 ").append(String.format(Locale.ROOT, "%.3f", heat))
+           .append(" 1.000\"];\n");
+      }
+      if (out.length() >= BUFFER_SIZE)
+        DotGraph.drain(out, bytes, encoder, channel);
+    }
+
+    /* printing edges */
+    for (int i = 0; i < edges.size(); i++) {
+      String[] edge = edges.get(i);
+      long[] weight = weights.get(i);
+      out.append("\t").append(edge[0]).append(" -> ").append(edge[1])
+         .append(" [label=\"d").append(weight[0]).append(" x").append(weight[1])
+         .append("\", penwidth=").append(1 + (int) Math.log10(Math.max(1, weight[1])));
+      if (weight[2] != 0)
+        out.append(", style=dashed");
+      out.append("];\n");
+      if (out.length() >= BUFFER_SIZE)
+        DotGraph.drain(out, bytes, encoder, channel);
+    }
+
+    out.append("}\n");
+    DotGraph.drain(out, bytes, encoder, channel);
+  }
+
+  private static void escape (String s, StringBuilder out) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        out.append('\\');
+      out.append(c);
+    }
+  }
+
+}
@@ -4,18 +4,28 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.io.File;
-import java.io.PrintWriter;
-import java.io.FileWriter;
+import java.util.Set;
+import java.util.HashSet;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class DotGraph {
 
+  private static final int BUFFER_SIZE = 1 << 16;
+
   private String packageName, definingClassName, methodName, outfile;
   private List<String> methodArguments;
   private List<DotNode> nodes;
   private Map<String, List<String>> edges;
-  private List<String> ifNodes;
+  private Set<String> ifNodes;
   private Integer autoId;
 
   public DotGraph (String pkg, String dc, String method, String file) {
@@ -26,7 +36,7 @@ public class DotGraph {
     autoId = 0;
     nodes = new ArrayList<DotNode>();
     edges = new HashMap<String, List<String>>();
-    ifNodes = new ArrayList<String>();
+    ifNodes = new HashSet<String>();
     methodArguments = new ArrayList<String>();
   }
 
@@ -78,51 +88,78 @@ public void newNode (List<String> lines, String name, String label, String shape
     }
   }
 
-  public void genDotFile() {
-    System.out.println("Generating dot file");
-     
-    PrintWriter pw = null;
-    try {
-      File file = new File(outfile);
-      FileWriter fw = new FileWriter(file, true);
-      pw = new PrintWriter(fw);
-      String add = "";
-
-      pw.println("digraph \"CFG for '"+ methodName + "' method\" {");
-      pw.println("\tlabel=\"CFG for '" + "." + methodName + "' method of class '" 
-      + definingClassName + "'\"; ");
-
-      /* printing all edges */
-      for (Map.Entry<String, List<String>> entry : edges.entrySet()) {
-        String from = entry.getKey();
-        if (ifNodes.contains(from)) {
-          String id = ":s1";
-          for (String to : entry.getValue()) {
-             pw.println("\t" + from + id + " -> \"" + to + "\";");
-             id = ":s0";
-          }  
-        } else
-           for (String to : entry.getValue()) {
-               if (ifNodes.contains(to))
-                 add = ":head";
-               pw.println("\t" + from + " -> " + to + add + ";");
-               add = "";
-           }
-      }
-
-      /* printing nodes' body */
-      for (DotNode dotNode : nodes) {
-        pw.println(dotNode.toString() + "\n");
-      }
-
-      pw.println("}");
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (pw != null) {
-        pw.close();
+  public String getOutput () {
+    return outfile;
+  }
+
+  /* overwrites the output file, so reruns do not pile graphs up in it */
+  public void genDotFile() throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(outfile), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(channel);
     }
   }
-}
+
+  /* streams the graph to a channel: every line goes to one reusable buffer,
+     which is encoded and written whenever it fills up */
+  public void write (WritableByteChannel channel) throws IOException {
+    StringBuilder out = new StringBuilder(BUFFER_SIZE);
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    out.append("digraph \"CFG for '").append(methodName).append("' method\" {\n");
+    out.append("\tlabel=\"CFG for '.").append(methodName).append("' method of class '")
+       .append(definingClassName).append("'\"; \n");
+
+    /* printing all edges */
+    for (Map.Entry<String, List<String>> entry : edges.entrySet()) {
+      String from = entry.getKey();
+      if (ifNodes.contains(from)) {
+        String id = ":s1";
+        for (String to : entry.getValue()) {
+           out.append('\t').append(from).append(id).append(" -> \"").append(to).append("\";\n");
+           id = ":s0";
+        }
+      } else
+         for (String to : entry.getValue()) {
+             out.append('\t').append(from).append(" -> ").append(to);
+             if (ifNodes.contains(to))
+               out.append(":head");
+             out.append(";\n");
+         }
+      if (out.length() >= BUFFER_SIZE)
+        drain(out, bytes, encoder, channel);
+    }
+
+    /* printing nodes' body */
+    for (DotNode dotNode : nodes) {
+      dotNode.write(out);
+      out.append("\n\n");
+      if (out.length() >= BUFFER_SIZE)
+        drain(out, bytes, encoder, channel);
+    }
+
+    out.append("}\n");
+    drain(out, bytes, encoder, channel);
+  }
+
+  /* encodes the pending text into bytes, writes them and empties out */
+  static void drain (StringBuilder out, ByteBuffer bytes, CharsetEncoder encoder,
+      WritableByteChannel channel) throws IOException {
+    CharBuffer chars = CharBuffer.wrap(out);
+    while (true) {
+      CoderResult result = encoder.encode(chars, bytes, true);
+      bytes.flip();
+      while (bytes.hasRemaining())
+        channel.write(bytes);
+      bytes.clear();
+      if (result.isUnderflow())
+        break;
+      if (result.isError())
+        result.throwException();
+    }
+    encoder.reset();
+    out.setLength(0);
+  }
 
 }
@@ -97,22 +97,37 @@ public class DotNode {
   }
 
   public String toString () {
-    String body;
+    StringBuilder body = new StringBuilder(64);
+    write(body);
+    return body.toString();
+  }
 
+  /* appends the node declaration to out, escaping each line in a single pass:
+     quotes, brackets and bars are escaped, then ### and ## stand for > and < */
+  public void write (StringBuilder out) {
     shape = "record";
-    body = "\t\"" + identifier + "\" [shape=" + shape + ", color=" + color + ", label=\"{<head>";
-    body += name + ":";
+    out.append("\t\"").append(identifier).append("\" [shape=").append(shape)
+       .append(", color=").append(color).append(", label=\"{<head>")
+       .append(name).append(':');
     for (String line: labels) {
-      body += "\\l";
-      line = line.replace("\"","\\\"");
-      line = line.replace("<","\\<");
-      line = line.replace(">","\\>");
-      line = line.replace("###",">");
-      line = line.replace("##","<");
-      body += "   " + line;
+      out.append("\\l   ");
+      int length = line.length();
+      for (int i = 0; i < length; i++) {
+        char c = line.charAt(i);
+        if (c == '#' && line.startsWith("###", i)) {
+          out.append('>');
+          i += 2;
+        } else if (c == '#' && line.startsWith("##", i)) {
+          out.append('<');
+          i += 1;
+        } else {
+          if (c == '"' || c == '<' || c == '>' || c == '{' || c == '}' || c == '|')
+            out.append('\\');
+          out.append(c);
+        }
+      }
     }
-    body += "}\"];";
-    return body;
+    out.append("}\"];");
   }
 
-}
+}
\ No newline at end of file
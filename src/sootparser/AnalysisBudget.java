@@ -0,0 +1,207 @@
+package sootparser;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.SootMethod;
+import sootparser.utils.Logger;
+
+/**
+ * Time, work and heap limits of an analysis run. They are enforced
+ * cooperatively: extraction, Call Graph extension and propagation ask a
+ * Meter before each unit or method they process and stop when it says no.
+ * A method whose work was cut short is recorded as truncated, the run goes
+ * on with what was computed for it, and the truncated methods are listed
+ * at the end.
+ *
+ * Every limit is off by default, a limit of 0 disables it.
+ * @author juniocezar
+ */
+public class AnalysisBudget {
+    private static AnalysisBudget instance = new AnalysisBudget();
+
+    // units processed between two clock and heap readings
+    private static final int CHECK_INTERVAL = 256;
+
+    // per method limits
+    private long methodNanos = 0;
+    private long methodUnits = 0;
+    // global limits
+    private long totalNanos = 0;
+    private long heapBytes = 0;
+
+    private long startNanos = System.nanoTime();
+    private volatile String exhausted = null;
+    // truncated methods and the reason of each
+    private Map<SootMethod, String> truncated = new ConcurrentHashMap<SootMethod, String>();
+
+    public static AnalysisBudget v () {
+        return instance;
+    }
+
+    public void setMethodMillis (long millis) {
+        methodNanos = millis * 1000000;
+    }
+
+    public void setMethodUnits (long units) {
+        methodUnits = units;
+    }
+
+    public void setTotalMillis (long millis) {
+        totalNanos = millis * 1000000;
+    }
+
+    public void setHeapMegabytes (long megabytes) {
+        heapBytes = megabytes * 1024 * 1024;
+    }
+
+    /**
+     * Starts the global clock and forgets previous truncations.
+     */
+    public void begin () {
+        startNanos = System.nanoTime();
+        exhausted = null;
+        truncated.clear();
+    }
+
+    /**
+     * Checks the global limits.
+     * @return true if the run is over its time or heap budget.
+     */
+    public boolean exhausted () {
+        if (exhausted != null) {
+            return true;
+        }
+        if (totalNanos > 0 && System.nanoTime() - startNanos > totalNanos) {
+            exhausted = "global time budget";
+        } else if (heapBytes > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            if (runtime.totalMemory() - runtime.freeMemory() > heapBytes) {
+                exhausted = "heap budget";
+            }
+        }
+        return exhausted != null;
+    }
+
+    /**
+     * Records that the work on a method was cut short. The first reason is kept.
+     * @param method Truncated method.
+     * @param phase Phase that gave up on it.
+     * @param reason Limit that was reached.
+     */
+    public void truncate (SootMethod method, String phase, String reason) {
+        truncated.putIfAbsent(method, phase + ": " + reason);
+    }
+
+    /**
+     * Records that a method was skipped because the run is out of budget.
+     * @param method Skipped method.
+     * @param phase Phase that skipped it.
+     */
+    public void skip (SootMethod method, String phase) {
+        truncate(method, phase, exhausted);
+    }
+
+    public boolean isTruncated (SootMethod method) {
+        return truncated.containsKey(method);
+    }
+
+    /**
+     * @param method Method about to be processed.
+     * @param phase Name of the phase, for the report.
+     * @return New meter for the work on a single method.
+     */
+    public Meter meter (SootMethod method, String phase) {
+        return new Meter(method, phase);
+    }
+
+    /**
+     * Counts the units processed for a single method. Not thread safe, each
+     * worker uses its own.
+     */
+    public class Meter {
+        private final SootMethod method;
+        private final String phase;
+        private final long start;
+        private long units;
+
+        private Meter (SootMethod method, String phase) {
+            this.method = method;
+            this.phase = phase;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Accounts for one more unit.
+         * @return false once the method or the run is out of budget.
+         */
+        public boolean tick () {
+            units++;
+            if (methodUnits > 0 && units > methodUnits) {
+                return stop("unit budget");
+            }
+            if (units % CHECK_INTERVAL == 0) {
+                if (methodNanos > 0 && System.nanoTime() - start > methodNanos) {
+                    return stop("time budget");
+                }
+                if (exhausted()) {
+                    return stop(exhausted);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks the time spent so far, e.g. after a step that does not go
+         * unit by unit, such as building the body of the method.
+         * @return false once the method or the run is out of budget.
+         */
+        public boolean check () {
+            if (methodNanos > 0 && System.nanoTime() - start > methodNanos) {
+                return stop("time budget");
+            }
+            if (exhausted()) {
+                return stop(exhausted);
+            }
+            return true;
+        }
+
+        private boolean stop (String reason) {
+            truncate(method, phase, reason);
+            return false;
+        }
+    }
+
+    /**
+     * Lists the truncated methods, in the debug log and, when the
+     * features go to a file, in a .truncated file next to it.
+     * @param outputFile File receiving the features, or null.
+     */
+    public void report (String outputFile) {
+        if (truncated.isEmpty()) {
+            return;
+        }
+        Logger.info(AnalysisBudget.class, truncated.size() + " methods truncated" +
+            (exhausted != null ? ", run stopped early by the " + exhausted : ""));
+        if (Logger.enabled(Logger.Level.DEBUG)) {
+            for (Map.Entry<SootMethod, String> entry : truncated.entrySet()) {
+                Logger.debug(AnalysisBudget.class, "%s\t%s", entry.getKey().getSignature(), entry.getValue());
+            }
+        }
+        if (outputFile != null && !outputFile.equals("-")) {
+            try (PrintStream out = new PrintStream(outputFile + ".truncated")) {
+                print(out);
+            } catch (FileNotFoundException e) {
+                Logger.error(AnalysisBudget.class, "Could not write truncated methods to " + outputFile +
+                    ".truncated: " + e.getMessage());
+            }
+        }
+    }
+
+    private void print (PrintStream out) {
+        for (Map.Entry<SootMethod, String> entry : truncated.entrySet()) {
+            out.println(entry.getKey().getSignature() + "\t" + entry.getValue());
+        }
+    }
+}
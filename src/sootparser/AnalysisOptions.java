@@ -0,0 +1,438 @@
+package sootparser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import sootparser.utils.Logger;
+
+/**
+ * Options of our own analysis. They are given on the command line as
+ * --name=value and are removed from the argument list before it is handed
+ * to Soot, so both option sets can be mixed freely.
+ * @author juniocezar
+ */
+public class AnalysisOptions {
+    private static AnalysisOptions instance = new AnalysisOptions();
+
+    // verbosity levels
+    public static final int QUIET = 0;
+    public static final int PHASES = 1;
+    public static final int METHODS = 2;
+    public static final int CALL_SITES = 3;
+
+    /**
+     * Call Graph construction algorithms, from the cheapest to the most precise.
+     */
+    public enum CallGraphAlgorithm { CHA, RTA, SPARK }
+
+    /**
+     * Number of worker threads used by the parallel phases, 1 keeps them serial.
+     */
+    private int threads = 1;
+    /**
+     * File where local features are cached between runs, null disables it.
+     */
+    private String cacheFile = null;
+    /**
+     * Classes modified since the cache was written, null runs a full analysis.
+     */
+    private Set<String> changedClasses = null;
+    /**
+     * How much progress is printed, from QUIET to CALL_SITES.
+     */
+    private int verbosity = PHASES;
+    /**
+     * File receiving the features, "-" for the standard output, null keeps
+     * the colored console report.
+     */
+    private String outputFile = null;
+    private FeatureWriter.Format outputFormat = FeatureWriter.Format.CSV;
+    /**
+     * Releases the body of each method as soon as its features and outgoing
+     * edges are known, so peak heap follows the working set.
+     */
+    private boolean lowMemory = false;
+    private CallGraphAlgorithm callGraph = CallGraphAlgorithm.SPARK;
+    /**
+     * File receiving the comparison of all Call Graph algorithms, null runs
+     * a single analysis.
+     */
+    private String callGraphReport = null;
+    /**
+     * Prefix of the DOT files receiving the weighted Call Graph, null skips it.
+     */
+    private String callGraphDot = null;
+    /**
+     * Number of hottest methods kept in the DOT Call Graph, 0 keeps them all.
+     */
+    private int callGraphDotTop = 0;
+    /**
+     * Methods per DOT file, 0 writes a single file.
+     */
+    private int callGraphDotShard = 500;
+    /**
+     * Directory receiving the CFG of each method, null skips them.
+     */
+    private String cfgDot = null;
+    private int cfgDotWriters = 2;
+    /**
+     * Manifest listing the artifacts of a batch, null analyzes a single input.
+     */
+    private String batchManifest = null;
+    private String batchOutput = "batch-results";
+    /**
+     * Number of worker processes of a batch, 0 analyzes every artifact in
+     * this JVM.
+     */
+    private int batchWorkers = 0;
+    /**
+     * Number of shard worker processes, 0 analyzes the program in this JVM.
+     * Needs the program as -process-dir and --cg=cha, as each worker only
+     * sees its share of the program, see ShardedAnalysis.
+     */
+    private int shards = 0;
+    /**
+     * Shard analyzed by this process when it is a shard worker, -1 otherwise.
+     */
+    private int shardIndex = -1;
+    private String shardOutput = null;
+    /**
+     * Prefix of the profile files, null disables profiling.
+     */
+    private String profileOutput = null;
+
+    public static AnalysisOptions v () {
+        return instance;
+    }
+
+    /**
+     * Consumes our options from the command line.
+     * @param args Full command line.
+     * @return Remaining arguments, which belong to Soot.
+     */
+    public String[] parse (String[] args) {
+        List<String> remaining = new ArrayList<String>();
+        for (String arg : args) {
+            if (!parseOption(arg)) {
+                remaining.add(arg);
+            }
+        }
+        return remaining.toArray(new String[remaining.size()]);
+    }
+
+    /**
+     * Parses a single argument.
+     * @param arg Command line argument.
+     * @return true if the argument is one of our options, false otherwise.
+     */
+    private boolean parseOption (String arg) {
+        if (!arg.startsWith("--") || !arg.contains("=")) {
+            return false;
+        }
+        String name = arg.substring(2, arg.indexOf('='));
+        String value = arg.substring(arg.indexOf('=') + 1);
+
+        switch (name) {
+            case "threads":
+                threads = Integer.parseInt(value);
+                if (threads <= 0) {
+                    threads = Runtime.getRuntime().availableProcessors();
+                }
+                return true;
+            case "loop-weight":
+                CostModel.set(new CostModel(Integer.parseInt(value), CostModel.v().asyncWeight()));
+                return true;
+            case "async-weight":
+                CostModel.set(new CostModel(CostModel.v().base(), Double.parseDouble(value)));
+                return true;
+            case "cache":
+                cacheFile = value;
+                return true;
+            case "changed":
+                changedClasses = parseClassList(value);
+                return true;
+            case "verbosity":
+                setVerbosity(Integer.parseInt(value));
+                return true;
+            case "out":
+                outputFile = value;
+                return true;
+            case "format":
+                outputFormat = FeatureWriter.Format.valueOf(value.toUpperCase());
+                return true;
+            case "exclude-config":
+                LibraryFilter.set(LibraryFilter.load(value));
+                return true;
+            case "low-memory":
+                lowMemory = Boolean.parseBoolean(value);
+                return true;
+            case "cg":
+                callGraph = CallGraphAlgorithm.valueOf(value.toUpperCase());
+                return true;
+            case "cg-report":
+                callGraphReport = value;
+                return true;
+            case "cg-dot":
+                callGraphDot = value;
+                return true;
+            case "cg-dot-top":
+                callGraphDotTop = Integer.parseInt(value);
+                return true;
+            case "cg-dot-shard":
+                callGraphDotShard = Integer.parseInt(value);
+                return true;
+            case "cfg-dot":
+                cfgDot = value;
+                return true;
+            case "cfg-dot-writers":
+                cfgDotWriters = Math.max(1, Integer.parseInt(value));
+                return true;
+            case "batch":
+                batchManifest = value;
+                return true;
+            case "batch-out":
+                batchOutput = value;
+                return true;
+            case "batch-workers":
+                batchWorkers = Integer.parseInt(value);
+                return true;
+            case "budget-method-ms":
+                AnalysisBudget.v().setMethodMillis(Long.parseLong(value));
+                return true;
+            case "budget-method-units":
+                AnalysisBudget.v().setMethodUnits(Long.parseLong(value));
+                return true;
+            case "budget-total-ms":
+                AnalysisBudget.v().setTotalMillis(Long.parseLong(value));
+                return true;
+            case "budget-heap-mb":
+                AnalysisBudget.v().setHeapMegabytes(Long.parseLong(value));
+                return true;
+            case "profile":
+                profileOutput = value;
+                PhaseProfiler.v().enable();
+                return true;
+            case "shards":
+                shards = Integer.parseInt(value);
+                return true;
+            case "shard":
+                // index/count, set by the coordinator on its workers
+                shardIndex = Integer.parseInt(value.substring(0, value.indexOf('/')));
+                shards = Integer.parseInt(value.substring(value.indexOf('/') + 1));
+                return true;
+            case "shard-out":
+                shardOutput = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Number of worker threads, 1 means serial execution.
+     */
+    public int threads () {
+        return threads;
+    }
+
+    public void setThreads (int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Parses a comma separated list of class names, or a file listing one
+     * class per line when the value starts with '@'.
+     * @param value Option value.
+     * @return Class names.
+     */
+    private static Set<String> parseClassList (String value) {
+        Set<String> names = new LinkedHashSet<String>();
+        List<String> items;
+        if (value.startsWith("@")) {
+            try {
+                items = Files.readAllLines(Paths.get(value.substring(1)), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read class list " + value.substring(1), e);
+            }
+        } else {
+            items = Arrays.asList(value.split(","));
+        }
+        for (String item : items) {
+            if (!item.trim().isEmpty()) {
+                names.add(item.trim());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return Path of the feature cache, or null when caching is disabled.
+     */
+    public String cacheFile () {
+        return cacheFile;
+    }
+
+    public void setCacheFile (String cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return Names of the classes modified since the cache was written, or
+     * null for a full analysis. Only used together with a cache.
+     */
+    public Set<String> changedClasses () {
+        return changedClasses;
+    }
+
+    public void setChangedClasses (Set<String> changedClasses) {
+        this.changedClasses = changedClasses;
+    }
+
+    /**
+     * @param level One of QUIET, PHASES, METHODS or CALL_SITES.
+     * @return true if messages of the given level are printed.
+     */
+    public boolean verbose (int level) {
+        return verbosity >= level;
+    }
+
+    public void setVerbosity (int verbosity) {
+        this.verbosity = verbosity;
+        Logger.setLevel(verbosity);
+    }
+
+    /**
+     * @return File receiving the features, or null for the console report.
+     */
+    public String outputFile () {
+        return outputFile;
+    }
+
+    public void setOutputFile (String outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public FeatureWriter.Format outputFormat () {
+        return outputFormat;
+    }
+
+    public void setOutputFormat (FeatureWriter.Format outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @return true if method bodies are released right after being analyzed.
+     */
+    public boolean lowMemory () {
+        return lowMemory;
+    }
+
+    public void setLowMemory (boolean lowMemory) {
+        this.lowMemory = lowMemory;
+    }
+
+    public CallGraphAlgorithm callGraph () {
+        return callGraph;
+    }
+
+    public void setCallGraph (CallGraphAlgorithm callGraph) {
+        this.callGraph = callGraph;
+    }
+
+    /**
+     * @return File receiving the Call Graph comparison, "-" for the standard
+     * output, or null.
+     */
+    public String callGraphReport () {
+        return callGraphReport;
+    }
+
+    public void setCallGraphReport (String callGraphReport) {
+        this.callGraphReport = callGraphReport;
+    }
+
+    /**
+     * @return Prefix of the DOT Call Graph files, or null.
+     */
+    public String callGraphDot () {
+        return callGraphDot;
+    }
+
+    public int callGraphDotTop () {
+        return callGraphDotTop;
+    }
+
+    public int callGraphDotShard () {
+        return callGraphDotShard;
+    }
+
+    /**
+     * @return Directory of the per method CFG files, or null.
+     */
+    public String cfgDot () {
+        return cfgDot;
+    }
+
+    public int cfgDotWriters () {
+        return cfgDotWriters;
+    }
+
+    /**
+     * @return Manifest of the batch, or null for a single input.
+     */
+    public String batchManifest () {
+        return batchManifest;
+    }
+
+    /**
+     * @return Directory receiving one result file per artifact.
+     */
+    public String batchOutput () {
+        return batchOutput;
+    }
+
+    /**
+     * @return Number of worker processes, 0 when the batch runs in this JVM.
+     */
+    public int batchWorkers () {
+        return batchWorkers;
+    }
+
+    /**
+     * @return Number of shards, 0 when the program is analyzed in one JVM.
+     */
+    public int shards () {
+        return shards;
+    }
+
+    /**
+     * @return Shard analyzed by this worker, -1 if this is not a worker.
+     */
+    public int shardIndex () {
+        return shardIndex;
+    }
+
+    /**
+     * @return File receiving the results of this shard worker.
+     */
+    public String shardOutput () {
+        return shardOutput;
+    }
+
+    /**
+     * @return Prefix of the .json and .folded profile files, or null.
+     */
+    public String profileOutput () {
+        return profileOutput;
+    }
+
+    public void setProfileOutput (String profileOutput) {
+        this.profileOutput = profileOutput;
+    }
+}
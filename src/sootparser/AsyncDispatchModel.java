@@ -0,0 +1,528 @@
+package sootparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import soot.Body;
+import soot.FastHierarchy;
+import soot.Local;
+import soot.PointsToSet;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.Value;
+import soot.jimple.DefinitionStmt;
+import soot.jimple.InstanceInvokeExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.NewExpr;
+import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.jimple.toolkits.callgraph.Kind;
+import sootparser.utils.Logger;
+
+/**
+ * Table of the library methods that hand a task to another thread, and of
+ * the method of the task that ends up running there: executors, fork/join
+ * pools and tasks, CompletableFuture and parallel streams. The Call Graph
+ * does not go through the library code in between, so the extension adds
+ * an edge from each such call site straight to the task body.
+ *
+ * Tasks are resolved through the points-to set of the argument holding
+ * them. Without Spark, every application subtype of its declared type is a
+ * candidate. Tasks handed over in a collection are the elements of the
+ * add() calls of the application whose receiver may alias the collection;
+ * without Spark, the tasks allocated by the method making the call.
+ *
+ * Thread.start() runs the run() method of the thread itself, or, for a
+ * plain Thread, the one of the Runnable given to its constructor. Those
+ * are found among the Thread constructor calls of the application whose
+ * receiver may alias the started thread. Without Spark only the declared
+ * type of the thread is used, as its stand-in points-to analysis would
+ * match every constructor.
+ *
+ * Edges into tasks run by another thread have kind THREAD, so the features
+ * record them as ASYNC. ForkJoinTask.invoke() runs the task on the calling
+ * thread, and stream operations are only asynchronous when the stream was
+ * made parallel in the same method, otherwise their edges are plain calls.
+ * @author juniocezar
+ */
+public class AsyncDispatchModel {
+    private static AsyncDispatchModel instance = new AsyncDispatchModel();
+
+    // the task is the receiver of the call, not one of its arguments
+    private static final int RECEIVER = -1;
+
+    private static final String THREAD = "java.lang.Thread";
+    private static final String RUNNABLE = "java.lang.Runnable";
+    private static final String COLLECTION = "java.util.Collection";
+
+    // task bodies
+    private static final String[] RUN = { "void run()" };
+    private static final String[] CALL = { "java.lang.Object call()" };
+    private static final String[] GET = { "java.lang.Object get()" };
+    private static final String[] COMPUTE = { "java.lang.Object compute()", "void compute()" };
+    private static final String[] ACCEPT = { "void accept(java.lang.Object)" };
+    private static final String[] APPLY = { "java.lang.Object apply(java.lang.Object)" };
+    private static final String[] TEST = { "boolean test(java.lang.Object)" };
+    private static final String[] COMBINE = { "java.lang.Object apply(java.lang.Object,java.lang.Object)" };
+
+    /**
+     * A method that dispatches a task.
+     */
+    private static class Rule {
+        // class or interface declaring the method, subtypes match too
+        String owner;
+        // argument holding the task, or RECEIVER
+        int task;
+        // the argument is a collection of tasks
+        boolean collection;
+        // stream operation, asynchronous only on parallel streams
+        boolean stream;
+        // runs the task on the calling thread
+        boolean sync;
+        // type of the task and subsignatures of its body
+        String taskType;
+        String[] bodies;
+    }
+
+    // rules by subsignature of the dispatching method
+    private Map<String, List<Rule>> rules = new HashMap<String, List<Rule>>();
+
+    // receiver and Runnable argument of the Thread constructor calls, and
+    // receiver and element of the Collection.add() calls, for the Scene
+    // they were collected from
+    private List<Value[]> threadConstructors = null;
+    private List<Value[]> collectionAdds = null;
+    private Scene indexed = null;
+
+    private AsyncDispatchModel () {
+        String executor = "java.util.concurrent.Executor";
+        String service = "java.util.concurrent.ExecutorService";
+        String runnable = RUNNABLE;
+        String callable = "java.util.concurrent.Callable";
+        add(executor, "void execute(java.lang.Runnable)", 0, runnable, RUN);
+        add(service, "java.util.concurrent.Future submit(java.lang.Runnable)", 0, runnable, RUN);
+        add(service, "java.util.concurrent.Future submit(java.lang.Runnable,java.lang.Object)", 0, runnable, RUN);
+        add(service, "java.util.concurrent.Future submit(java.util.concurrent.Callable)", 0, callable, CALL);
+        addCollection(service, "java.util.List invokeAll(java.util.Collection)", callable, CALL);
+        addCollection(service, "java.util.List invokeAll(java.util.Collection,long,java.util.concurrent.TimeUnit)",
+            callable, CALL);
+        addCollection(service, "java.lang.Object invokeAny(java.util.Collection)", callable, CALL);
+        addCollection(service, "java.lang.Object invokeAny(java.util.Collection,long,java.util.concurrent.TimeUnit)",
+            callable, CALL);
+
+        String future = "java.util.concurrent.CompletableFuture";
+        String supplier = "java.util.function.Supplier";
+        add(future, "java.util.concurrent.CompletableFuture runAsync(java.lang.Runnable)", 0, runnable, RUN);
+        add(future, "java.util.concurrent.CompletableFuture runAsync(java.lang.Runnable,java.util.concurrent.Executor)",
+            0, runnable, RUN);
+        add(future, "java.util.concurrent.CompletableFuture supplyAsync(java.util.function.Supplier)",
+            0, supplier, GET);
+        add(future, "java.util.concurrent.CompletableFuture supplyAsync(java.util.function.Supplier," +
+            "java.util.concurrent.Executor)", 0, supplier, GET);
+
+        String pool = "java.util.concurrent.ForkJoinPool";
+        String task = "java.util.concurrent.ForkJoinTask";
+        add(pool, "java.lang.Object invoke(java.util.concurrent.ForkJoinTask)", 0, task, COMPUTE);
+        add(pool, "void execute(java.util.concurrent.ForkJoinTask)", 0, task, COMPUTE);
+        add(pool, "java.util.concurrent.ForkJoinTask submit(java.util.concurrent.ForkJoinTask)", 0, task, COMPUTE);
+        add(task, "java.util.concurrent.ForkJoinTask fork()", RECEIVER, task, COMPUTE);
+        // invoke() computes in place, invokeAll(a, b) forks b and invokes a
+        add(task, "java.lang.Object invoke()", RECEIVER, task, COMPUTE).sync = true;
+        add(task, "void invokeAll(java.util.concurrent.ForkJoinTask,java.util.concurrent.ForkJoinTask)",
+            0, task, COMPUTE).sync = true;
+        add(task, "void invokeAll(java.util.concurrent.ForkJoinTask,java.util.concurrent.ForkJoinTask)",
+            1, task, COMPUTE);
+        addCollection(task, "java.util.Collection invokeAll(java.util.Collection)", task, COMPUTE);
+
+        addStream("void forEach(java.util.function.Consumer)", "java.util.function.Consumer", ACCEPT);
+        addStream("void forEachOrdered(java.util.function.Consumer)", "java.util.function.Consumer", ACCEPT);
+        addStream("java.util.stream.Stream map(java.util.function.Function)", "java.util.function.Function", APPLY);
+        addStream("java.util.stream.Stream flatMap(java.util.function.Function)", "java.util.function.Function", APPLY);
+        addStream("java.util.stream.Stream filter(java.util.function.Predicate)", "java.util.function.Predicate", TEST);
+        addStream("boolean anyMatch(java.util.function.Predicate)", "java.util.function.Predicate", TEST);
+        addStream("boolean allMatch(java.util.function.Predicate)", "java.util.function.Predicate", TEST);
+        addStream("boolean noneMatch(java.util.function.Predicate)", "java.util.function.Predicate", TEST);
+        addStream("java.util.Optional reduce(java.util.function.BinaryOperator)",
+            "java.util.function.BinaryOperator", COMBINE);
+        Rule reduce = addStream("java.lang.Object reduce(java.lang.Object,java.util.function.BinaryOperator)",
+            "java.util.function.BinaryOperator", COMBINE);
+        reduce.task = 1;
+    }
+
+    public static AsyncDispatchModel v () {
+        return instance;
+    }
+
+    private Rule add (String owner, String subSignature, int task, String taskType, String[] bodies) {
+        Rule rule = new Rule();
+        rule.owner = owner;
+        rule.task = task;
+        rule.taskType = taskType;
+        rule.bodies = bodies;
+        List<Rule> list = rules.get(subSignature);
+        if (list == null) {
+            list = new ArrayList<Rule>();
+            rules.put(subSignature, list);
+        }
+        list.add(rule);
+        return rule;
+    }
+
+    private void addCollection (String owner, String subSignature, String taskType, String[] bodies) {
+        add(owner, subSignature, 0, taskType, bodies).collection = true;
+    }
+
+    private Rule addStream (String subSignature, String taskType, String[] bodies) {
+        Rule rule = add("java.util.stream.Stream", subSignature, 0, taskType, bodies);
+        rule.stream = true;
+        return rule;
+    }
+
+    /**
+     * Adds the edges of a call site that dispatches tasks.
+     * @param cg Call Graph.
+     * @param caller Method containing the call site.
+     * @param s Statement holding the invoke expression.
+     * @param nexts Output list, receives the targets of the new edges.
+     * @return true if the call site dispatches tasks, even if none was found.
+     */
+    public boolean extend (CallGraph cg, SootMethod caller, Stmt s, List<SootMethod> nexts) {
+        InvokeExpr in = s.getInvokeExpr();
+        SootMethod callee = in.getMethod();
+        if (callee.getDeclaringClass().getName().equals(THREAD) &&
+                callee.getSubSignature().equals("void start()")) {
+            if (in instanceof InstanceInvokeExpr) {
+                for (SootMethod run : startTargets(((InstanceInvokeExpr) in).getBase())) {
+                    if (!run.equals(caller) && !LibraryFilter.v().isLibraryClass(run.getDeclaringClass())) {
+                        cg.addEdge(new Edge(caller, s, run, Kind.THREAD));
+                        nexts.add(run);
+                        if (Logger.enabled(Logger.Level.TRACE)) {
+                            Logger.trace(AsyncDispatchModel.class, "added edge from %s to %s",
+                                caller.getSignature(), run.getSignature());
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+        List<Rule> candidates = rules.get(callee.getSubSignature());
+        if (candidates == null) {
+            return false;
+        }
+        boolean matched = false;
+        for (Rule rule : candidates) {
+            if (!isSubtype(callee.getDeclaringClass(), rule.owner)) {
+                continue;
+            }
+            matched = true;
+            Value task = rule.task == RECEIVER ?
+                (in instanceof InstanceInvokeExpr ? ((InstanceInvokeExpr) in).getBase() : null) :
+                (rule.task < in.getArgCount() ? in.getArg(rule.task) : null);
+            if (task == null) {
+                continue;
+            }
+            boolean async = !rule.sync &&
+                (!rule.stream || isParallel(caller, ((InstanceInvokeExpr) in).getBase(), 0));
+            Set<SootClass> classes = rule.collection ?
+                elementClasses(caller, task, rule.taskType) : taskClasses(task, rule.taskType);
+            for (SootClass sclass : classes) {
+                SootMethod body = body(sclass, rule.bodies);
+                if (body == null || body.equals(caller) ||
+                        LibraryFilter.v().isLibraryClass(body.getDeclaringClass())) {
+                    continue;
+                }
+                cg.addEdge(async ? new Edge(caller, s, body, Kind.THREAD) : new Edge(caller, s, body));
+                nexts.add(body);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * run() methods a Thread.start() call may execute.
+     * @param thread Receiver of the call.
+     * @return Run methods of the thread classes, and with Spark, of the
+     * Runnables given to the constructors of plain threads.
+     */
+    private Set<SootMethod> startTargets (Value thread) {
+        Set<SootMethod> runs = new LinkedHashSet<SootMethod>();
+        boolean plain = false;
+        for (SootClass sclass : taskClasses(thread, THREAD)) {
+            SootMethod run = body(sclass, RUN);
+            if (run == null) {
+                continue;
+            }
+            if (run.getDeclaringClass().getName().equals(THREAD)) {
+                plain = true;
+            } else {
+                runs.add(run);
+            }
+        }
+        PointsToSet pts = pointsTo(thread);
+        if (!plain || pts == null) {
+            return runs;
+        }
+        for (Value[] constructor : threadConstructors()) {
+            PointsToSet receiver = pointsTo(constructor[0]);
+            if (receiver == null || !pts.hasNonEmptyIntersection(receiver)) {
+                continue;
+            }
+            for (SootClass sclass : taskClasses(constructor[1], RUNNABLE)) {
+                SootMethod run = body(sclass, RUN);
+                if (run != null) {
+                    runs.add(run);
+                }
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * @return Receiver and Runnable argument of each Thread constructor
+     * call of the application, super(runnable) calls of Thread subclasses
+     * included.
+     */
+    private List<Value[]> threadConstructors () {
+        index();
+        return threadConstructors;
+    }
+
+    /**
+     * @return Receiver and element of each call adding to a Collection in
+     * the application.
+     */
+    private List<Value[]> collectionAdds () {
+        index();
+        return collectionAdds;
+    }
+
+    /**
+     * Scans the application once per Scene for the calls the tasks are
+     * found through: Thread constructors and Collection.add().
+     */
+    private void index () {
+        if (indexed == Scene.v()) {
+            return;
+        }
+        threadConstructors = new ArrayList<Value[]>();
+        collectionAdds = new ArrayList<Value[]>();
+        indexed = Scene.v();
+        Type runnable = Scene.v().getSootClass(RUNNABLE).getType();
+        FastHierarchy h = Scene.v().getOrMakeFastHierarchy();
+        for (SootClass sclass : StaticAnalyzer.applicationClasses()) {
+            for (SootMethod sm : sclass.getMethods()) {
+                if (!sm.isConcrete()) {
+                    continue;
+                }
+                Body body;
+                try {
+                    body = sm.retrieveActiveBody();
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                for (Unit u : body.getUnits()) {
+                    Stmt s = (Stmt) u;
+                    if (!s.containsInvokeExpr() || !(s.getInvokeExpr() instanceof InstanceInvokeExpr)) {
+                        continue;
+                    }
+                    InstanceInvokeExpr in = (InstanceInvokeExpr) s.getInvokeExpr();
+                    SootMethod callee = in.getMethod();
+                    if (in instanceof SpecialInvokeExpr && callee.getName().equals("<init>") &&
+                            callee.getDeclaringClass().getName().equals(THREAD)) {
+                        for (Value arg : in.getArgs()) {
+                            if (arg.getType() instanceof RefType && h.canStoreType(arg.getType(), runnable)) {
+                                threadConstructors.add(new Value[] { in.getBase(), arg });
+                            }
+                        }
+                    } else if (callee.getName().equals("add") && in.getArgCount() > 0 &&
+                            isSubtype(callee.getDeclaringClass(), COLLECTION)) {
+                        // add(element) and add(index, element)
+                        collectionAdds.add(new Value[] { in.getBase(), in.getArg(in.getArgCount() - 1) });
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Concrete classes of the tasks held by a collection. With Spark they
+     * are the types the elements added to an alias of the collection may
+     * point to. Otherwise they are the tasks allocated by the method
+     * handing the collection over.
+     * @param caller Method handing the collection over.
+     * @param collection Value holding the collection.
+     * @param taskType Type of the tasks.
+     * @return Candidate classes of the tasks.
+     */
+    Set<SootClass> elementClasses (SootMethod caller, Value collection, String taskType) {
+        Set<SootClass> classes = new LinkedHashSet<SootClass>();
+        if (!Scene.v().containsClass(taskType)) {
+            return classes;
+        }
+        Type type = Scene.v().getSootClass(taskType).getType();
+        FastHierarchy h = Scene.v().getOrMakeFastHierarchy();
+        Set<SootClass> candidates = new LinkedHashSet<SootClass>();
+        PointsToSet pts = pointsTo(collection);
+        if (pts != null && !pts.isEmpty()) {
+            for (Value[] add : collectionAdds()) {
+                PointsToSet receiver = pointsTo(add[0]);
+                PointsToSet element = pointsTo(add[1]);
+                if (receiver == null || element == null || !pts.hasNonEmptyIntersection(receiver)) {
+                    continue;
+                }
+                for (Type possible : element.possibleTypes()) {
+                    addConcrete(possible, candidates);
+                }
+            }
+        } else {
+            for (Unit u : caller.retrieveActiveBody().getUnits()) {
+                if (u instanceof DefinitionStmt && ((DefinitionStmt) u).getRightOp() instanceof NewExpr) {
+                    addConcrete(((NewExpr) ((DefinitionStmt) u).getRightOp()).getBaseType(), candidates);
+                }
+            }
+        }
+        for (SootClass sclass : candidates) {
+            if (h.canStoreType(sclass.getType(), type)) {
+                classes.add(sclass);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @return Points-to set of a local, null for other values and without
+     * Spark, whose stand-in analysis makes every value alias every other.
+     */
+    private static PointsToSet pointsTo (Value value) {
+        return value instanceof Local && AnalysisOptions.v().callGraph() == AnalysisOptions.CallGraphAlgorithm.SPARK ?
+            Scene.v().getPointsToAnalysis().reachingObjects((Local) value) : null;
+    }
+
+    /**
+     * Concrete classes a task value may have. With Spark they come from its
+     * points-to set, where only abstract types stand for every implementor
+     * of the task type, and an empty set, for code Spark found unreachable,
+     * falls back to the declared type. Without Spark they are the declared
+     * type and its application subtypes.
+     * @param task Value holding the task.
+     * @param taskType Type of the task expected by the dispatching method.
+     * @return Candidate classes of the task.
+     */
+    Set<SootClass> taskClasses (Value task, String taskType) {
+        Set<SootClass> classes = new LinkedHashSet<SootClass>();
+        if (AnalysisOptions.v().callGraph() != AnalysisOptions.CallGraphAlgorithm.SPARK) {
+            addConcrete(task.getType(), classes);
+            if (task.getType() instanceof RefType) {
+                classes.addAll(implementors(((RefType) task.getType()).getClassName()));
+            }
+            return classes;
+        }
+        PointsToSet pts = pointsTo(task);
+        if (pts != null && !pts.isEmpty()) {
+            for (Type type : pts.possibleTypes()) {
+                addConcrete(type, classes);
+            }
+            return classes.isEmpty() ? implementors(taskType) : classes;
+        }
+        addConcrete(task.getType(), classes);
+        return classes;
+    }
+
+    private static void addConcrete (Type type, Set<SootClass> classes) {
+        if (type instanceof RefType) {
+            SootClass sclass = ((RefType) type).getSootClass();
+            if (sclass.isConcrete() && !sclass.isPhantom()) {
+                classes.add(sclass);
+            }
+        }
+    }
+
+    /**
+     * @return Concrete application classes implementing or extending a type.
+     */
+    static Set<SootClass> implementors (String type) {
+        if (!Scene.v().containsClass(type)) {
+            return Collections.emptySet();
+        }
+        SootClass target = Scene.v().getSootClass(type);
+        FastHierarchy h = Scene.v().getOrMakeFastHierarchy();
+        Set<SootClass> classes = new LinkedHashSet<SootClass>();
+        for (SootClass sclass : Scene.v().getApplicationClasses()) {
+            if (sclass.isConcrete() && !LibraryFilter.v().isLibraryClass(sclass) &&
+                    h.canStoreType(sclass.getType(), target.getType())) {
+                classes.add(sclass);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @return First concrete method of a class or its superclasses with one
+     * of the given subsignatures, or null.
+     */
+    static SootMethod body (SootClass sclass, String[] bodies) {
+        for (SootClass c = sclass; c != null; c = c.hasSuperclass() ? c.getSuperclass() : null) {
+            for (String subSignature : bodies) {
+                SootMethod sm = c.getMethodUnsafe(subSignature);
+                if (sm != null && sm.isConcrete()) {
+                    return sm;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSubtype (SootClass sclass, String owner) {
+        if (sclass.getName().equals(owner)) {
+            return true;
+        }
+        if (!Scene.v().containsClass(owner)) {
+            return false;
+        }
+        return Scene.v().getOrMakeFastHierarchy().canStoreType(sclass.getType(),
+            Scene.v().getSootClass(owner).getType());
+    }
+
+    /**
+     * Follows a stream back through the operations that produced it, inside
+     * the method, looking for a call to parallel() or parallelStream().
+     * @param method Method using the stream.
+     * @param stream Local holding the stream.
+     * @param steps Operations followed so far.
+     * @return true if the stream was made parallel.
+     */
+    private static boolean isParallel (SootMethod method, Value stream, int steps) {
+        if (!(stream instanceof Local) || steps > 16) {
+            return false;
+        }
+        Body body = method.retrieveActiveBody();
+        for (Unit u : body.getUnits()) {
+            if (!(u instanceof DefinitionStmt) || ((DefinitionStmt) u).getLeftOp() != stream) {
+                continue;
+            }
+            Value right = ((DefinitionStmt) u).getRightOp();
+            if (!(right instanceof InvokeExpr)) {
+                return false;
+            }
+            String name = ((InvokeExpr) right).getMethod().getName();
+            if (name.equals("parallel") || name.equals("parallelStream")) {
+                return true;
+            }
+            if (name.equals("sequential") || !(right instanceof InstanceInvokeExpr)) {
+                return false;
+            }
+            return isParallel(method, ((InstanceInvokeExpr) right).getBase(), steps + 1);
+        }
+        return false;
+    }
+}
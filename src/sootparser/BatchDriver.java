@@ -0,0 +1,248 @@
+package sootparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import soot.G;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import sootparser.utils.Logger;
+
+/**
+ * Analyzes every jar or class directory listed in a manifest, one per
+ * line, writing one result file per artifact to the output directory.
+ *
+ * By default the artifacts are analyzed in sequence inside this JVM, so
+ * the JVM start up and the JIT warm up are paid once. Soot keeps its Scene
+ * in global state, which is reset between artifacts. With --batch-workers
+ * each artifact is analyzed by its own worker process instead, several of
+ * them at a time, so a crash or an out of memory error only loses that
+ * artifact.
+ *
+ * Each artifact also gets a feature cache next to its result, so classes
+ * that did not change since the previous batch are restored instead of
+ * being analyzed again. With --profile, each artifact is profiled on its
+ * own, to the profile prefix followed by the name of the artifact.
+ * @author juniocezar
+ */
+public class BatchDriver {
+
+    /**
+     * A manifest entry and the files it produces.
+     */
+    private static class Job {
+        String artifact;
+        String output;
+        String cache;
+        // prefix of the profile files, null when not profiling
+        String profile;
+        boolean ok;
+        long millis;
+    }
+
+    /**
+     * Runs the batch.
+     * @param args Full command line, forwarded to the worker processes.
+     * @param sootArgs Soot part of the command line.
+     */
+    public static void run (String[] args, String[] sootArgs) {
+        AnalysisOptions options = AnalysisOptions.v();
+        File outDir = new File(options.batchOutput());
+        outDir.mkdirs();
+        List<Job> jobs = readManifest(options.batchManifest(), outDir, options.outputFormat(),
+            options.profileOutput());
+        Logger.info(BatchDriver.class, "Analyzing " + jobs.size() + " artifacts from " + options.batchManifest());
+
+        int workers = options.batchWorkers();
+        if (workers > 0) {
+            runIsolated(jobs, args, workers);
+        } else {
+            for (Job job : jobs) {
+                runInProcess(job, sootArgs);
+            }
+        }
+
+        int failed = 0;
+        Logger.flush();
+        for (Job job : jobs) {
+            System.out.println((job.ok ? "ok     " : "FAILED ") + job.millis + " ms  " +
+                job.artifact + (job.ok ? " -> " + job.output : ""));
+            if (!job.ok) {
+                failed++;
+            }
+        }
+        Logger.info(BatchDriver.class, (jobs.size() - failed) + " artifacts analyzed, " + failed + " failed");
+    }
+
+    /**
+     * Reads the manifest. Blank lines and lines starting with '#' are skipped.
+     * @param manifest Manifest file.
+     * @param outDir Directory receiving the results.
+     * @param format Output format, gives the extension of the result files.
+     * @param profile Prefix of the profile files, null when not profiling.
+     * @return One job per artifact.
+     */
+    private static List<Job> readManifest (String manifest, File outDir, FeatureWriter.Format format,
+            String profile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read batch manifest " + manifest, e);
+        }
+
+        List<Job> jobs = new ArrayList<Job>();
+        Set<String> names = new HashSet<String>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            // artifacts with the same file name get a numeric suffix
+            String base = new File(line).getName().replaceAll("\\.(jar|zip)$", "");
+            String name = base;
+            for (int i = 2; !names.add(name); i++) {
+                name = base + "-" + i;
+            }
+            Job job = new Job();
+            job.artifact = line;
+            job.output = new File(outDir, name + "." + format.name().toLowerCase()).getPath();
+            job.cache = new File(outDir, name + ".cache").getPath();
+            job.profile = profile == null ? null : profile + "-" + name;
+            // a result left by a previous batch must not pass for a new one
+            new File(job.output).delete();
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    /**
+     * Soot command line of a single artifact. Jimple output is turned off
+     * unless the original command line asks for a format.
+     */
+    private static List<String> jobArgs (Job job, String[] sootArgs) {
+        List<String> jobArgs = new ArrayList<String>();
+        jobArgs.add("-f");
+        jobArgs.add("n");
+        jobArgs.addAll(Arrays.asList(sootArgs));
+        jobArgs.add("-process-dir");
+        jobArgs.add(job.artifact);
+        return jobArgs;
+    }
+
+    /**
+     * Analyzes an artifact in this JVM, after resetting Soot.
+     * @param job Artifact to be analyzed.
+     * @param sootArgs Soot part of the command line.
+     */
+    private static void runInProcess (Job job, String[] sootArgs) {
+        Logger.info(BatchDriver.class, "Analyzing " + job.artifact);
+        AnalysisOptions options = AnalysisOptions.v();
+        options.setOutputFile(job.output);
+        options.setCacheFile(job.cache);
+        options.setChangedClasses(null);
+        // each artifact gets its own profile, not the totals of the batch
+        options.setProfileOutput(job.profile);
+        PhaseProfiler.v().reset();
+        G.reset();
+        LoopDepthIndex.v().clear();
+
+        long start = System.nanoTime();
+        List<String> args = jobArgs(job, sootArgs);
+        try {
+            SootDriver.runAnalysis(args.toArray(new String[args.size()]),
+                new SootDriver.AnalysisListener() {
+                    public void analyzed (StaticAnalyzer analyzer, CallGraph cg) {
+                        analyzer.printFeaturesMap();
+                    }
+                });
+            job.ok = new File(job.output).isFile();
+        } catch (RuntimeException e) {
+            Logger.error(BatchDriver.class, "Analysis of " + job.artifact + " failed: " + e);
+        }
+        job.millis = (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Analyzes every artifact in its own worker process.
+     * @param jobs Artifacts to be analyzed.
+     * @param args Full command line.
+     * @param workers Number of worker processes running at the same time.
+     */
+    private static void runIsolated (List<Job> jobs, final String[] args, int workers) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Job job : jobs) {
+            futures.add(pool.submit(() -> runWorker(job, args)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts a JVM analyzing a single artifact and waits for it. Its output
+     * goes to a log file next to the result.
+     * @param job Artifact to be analyzed.
+     * @param args Full command line.
+     */
+    private static void runWorker (Job job, String[] args) {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SootDriver.class.getName());
+
+        // our options minus the batch ones, then the soot ones
+        List<String> sootArgs = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--batch") || arg.startsWith("--out=") || arg.startsWith("--cache=") ||
+                    arg.startsWith("--changed=") || arg.startsWith("--profile=")) {
+                continue;
+            }
+            if (arg.startsWith("--") && arg.contains("=")) {
+                command.add(arg);
+            } else {
+                sootArgs.add(arg);
+            }
+        }
+        command.add("--out=" + job.output);
+        command.add("--cache=" + job.cache);
+        if (job.profile != null) {
+            command.add("--profile=" + job.profile);
+        }
+        command.addAll(jobArgs(job, sootArgs.toArray(new String[sootArgs.size()])));
+
+        long start = System.nanoTime();
+        try {
+            Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(job.output + ".log"))
+                .start();
+            job.ok = process.waitFor() == 0 && new File(job.output).isFile();
+        } catch (IOException e) {
+            Logger.error(BatchDriver.class, "Could not start worker for " + job.artifact + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        job.millis = (System.nanoTime() - start) / 1000000;
+    }
+}
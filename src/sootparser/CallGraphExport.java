@@ -0,0 +1,148 @@
+package sootparser;
+
+import dot.graph.CallGraphDot;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import sootparser.utils.Logger;
+
+/**
+ * Writes the Call Graph the features were propagated over as DOT files.
+ * Each method is annotated with its static and approximated dynamic
+ * invocations, and each edge with the deepest loop among its call sites
+ * and the estimated executions of the calls it stands for. Edges starting
+ * a task on another thread are dashed.
+ *
+ * Only the top-K methods with the most dynamic invocations are kept, with
+ * the edges between them, so the hot paths of large programs stay
+ * readable. The kept methods are split, hottest first, into files of a
+ * fixed number of methods; an edge to a method of another file points to
+ * a dashed stub naming that file, so every file renders on its own.
+ * @author juniocezar
+ */
+public class CallGraphExport {
+
+    /**
+     * Writes prefix.dot, or prefix-0.dot, prefix-1.dot... when sharded.
+     * @param analyzer Analyzer holding the propagated features.
+     * @param prefix Path of the output files, without extension.
+     * @param top Number of methods kept, 0 keeps every method.
+     * @param shardSize Methods per file, 0 writes a single file.
+     */
+    public static void export (StaticAnalyzer analyzer, String prefix, int top, int shardSize) {
+        final MethodTable table = analyzer.table();
+        int size = table.size();
+        List<Integer> ranked = new ArrayList<Integer>();
+        for (int id = 0; id < size; id++) {
+            if (table.has(id, (byte) (MethodTable.LOCAL | MethodTable.PROPAGATED))) {
+                ranked.add(id);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Integer>() {
+            public int compare (Integer a, Integer b) {
+                return Long.compare(table.dynamicOf(b), table.dynamicOf(a));
+            }
+        });
+        if (top > 0 && ranked.size() > top) {
+            ranked = ranked.subList(0, top);
+        }
+
+        // shard of each kept method, -1 for pruned ones
+        int shards = shardSize > 0 ? Math.max(1, (ranked.size() + shardSize - 1) / shardSize) : 1;
+        int[] shardOf = new int[size];
+        Arrays.fill(shardOf, -1);
+        for (int rank = 0; rank < ranked.size(); rank++) {
+            shardOf[ranked.get(rank)] = shardSize > 0 ? rank / shardSize : 0;
+        }
+
+        List<CallGraphDot> graphs = new ArrayList<CallGraphDot>();
+        for (int s = 0; s < shards; s++) {
+            graphs.add(new CallGraphDot(shards > 1 ? "Call Graph " + s + "/" + shards : "Call Graph"));
+        }
+        for (int id : ranked) {
+            graphs.get(shardOf[id]).newNode(node(id), table.method(id).getSignature(),
+                table.staticOf(id), table.dynamicOf(id));
+        }
+
+        int edges = 0;
+        CostModel model = CostModel.v();
+        // stubs already added, as shard * size + target
+        Set<Long> stubs = new HashSet<Long>();
+        for (int id : ranked) {
+            CallGraphDot graph = graphs.get(shardOf[id]);
+            // all call sites of the same callee become a single edge
+            Map<Integer, long[]> calls = new LinkedHashMap<Integer, long[]>();
+            CallSummary summary = summary(analyzer, id);
+            int[] targets = summary.resolve(table);
+            for (int e = 0; e < targets.length; e++) {
+                int target = targets[e];
+                if (target >= size || shardOf[target] < 0) {
+                    continue;
+                }
+                int depth = summary.depths[e];
+                long[] call = calls.get(target);
+                if (call == null) {
+                    call = new long[] { 0, 0, 0 };
+                    calls.put(target, call);
+                }
+                call[0] = Math.max(call[0], CallSummary.loopDepth(depth));
+                call[1] = model.add(call[1], model.weight(depth));
+                if (CallSummary.isAsync(depth)) {
+                    call[2] = 1;
+                }
+            }
+            for (Map.Entry<Integer, long[]> entry : calls.entrySet()) {
+                int target = entry.getKey();
+                String to = node(target);
+                if (shardOf[target] != shardOf[id]) {
+                    to = "s" + target;
+                    if (stubs.add((long) shardOf[id] * size + target)) {
+                        graph.newStub(to, table.method(target).getSignature(),
+                            shardFile(prefix, shardOf[target], shards));
+                    }
+                }
+                long[] call = entry.getValue();
+                graph.newEdge(node(id), to, (int) call[0], call[1], call[2] != 0);
+                edges++;
+            }
+        }
+
+        for (int s = 0; s < shards; s++) {
+            String path = shardFile(prefix, s, shards);
+            try {
+                graphs.get(s).genDotFile(path);
+            } catch (IOException e) {
+                Logger.error(CallGraphExport.class, "Could not write Call Graph to " + path + ": " + e.getMessage());
+                return;
+            }
+        }
+        Logger.info(CallGraphExport.class, "Call Graph of " + ranked.size() + " methods and " + edges +
+            " edges written to " + shards + " DOT files");
+    }
+
+    /**
+     * @return Outgoing edges of a method, none if its body cannot be read.
+     */
+    private static CallSummary summary (StaticAnalyzer analyzer, int id) {
+        try {
+            return analyzer.summary(id);
+        } catch (RuntimeException e) {
+            return CallSummary.EMPTY;
+        }
+    }
+
+    private static String node (int id) {
+        return "m" + id;
+    }
+
+    private static String shardFile (String prefix, int shard, int shards) {
+        return shards > 1 ? prefix + "-" + shard + ".dot" : prefix + ".dot";
+    }
+}
@@ -0,0 +1,153 @@
+package sootparser;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import soot.G;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import sootparser.AnalysisOptions.CallGraphAlgorithm;
+import sootparser.utils.Logger;
+
+/**
+ * Runs the analysis once per Call Graph algorithm on the same input and
+ * reports how much the propagated approxDynamicInvokations of each
+ * application method change, taking Spark as the reference. It tells
+ * whether the cheaper CHA or RTA graphs are precise enough for a program.
+ * @author juniocezar
+ */
+public class CallGraphReport {
+    // methods with the largest differences listed for each algorithm
+    private static final int TOP = 10;
+
+    /**
+     * Results of a single run.
+     */
+    private static class Run {
+        CallGraphAlgorithm algorithm;
+        long millis;
+        int edges;
+        // propagated dynamic invocations of each application method
+        Map<String, Long> dynamic = new HashMap<String, Long>();
+    }
+
+    /**
+     * Runs every algorithm and writes the report.
+     * @param sootArgs Soot command line.
+     * @param path Report file, "-" for the standard output.
+     */
+    public static void run (String[] sootArgs, String path) {
+        AnalysisOptions options = AnalysisOptions.v();
+        CallGraphAlgorithm selected = options.callGraph();
+        // restored features would hide the differences between graphs
+        String cacheFile = options.cacheFile();
+        options.setCacheFile(null);
+
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            for (CallGraphAlgorithm algorithm : CallGraphAlgorithm.values()) {
+                Logger.info(CallGraphReport.class, "Analyzing with the " + algorithm + " Call Graph");
+                runs.add(runOnce(sootArgs, algorithm));
+            }
+        } finally {
+            options.setCallGraph(selected);
+            options.setCacheFile(cacheFile);
+        }
+
+        if (path.equals("-")) {
+            Logger.flush();
+            print(runs, System.out);
+            return;
+        }
+        try (PrintStream out = new PrintStream(path)) {
+            print(runs, out);
+        } catch (FileNotFoundException e) {
+            Logger.error(CallGraphReport.class, "Could not write Call Graph report to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static Run runOnce (String[] sootArgs, CallGraphAlgorithm algorithm) {
+        final Run run = new Run();
+        run.algorithm = algorithm;
+        G.reset();
+        LoopDepthIndex.v().clear();
+        AnalysisOptions.v().setCallGraph(algorithm);
+
+        long start = System.nanoTime();
+        SootDriver.runAnalysis(sootArgs, new SootDriver.AnalysisListener() {
+            public void analyzed (StaticAnalyzer analyzer, CallGraph cg) {
+                run.edges = cg.size();
+                MethodTable table = analyzer.table();
+                for (int id = 0; id < table.size(); id++) {
+                    if (table.has(id, MethodTable.LOCAL)) {
+                        run.dynamic.put(table.method(id).getSignature(), table.dynamicOf(id));
+                    }
+                }
+            }
+        });
+        run.millis = (System.nanoTime() - start) / 1000000;
+        return run;
+    }
+
+    /**
+     * Prints the cost of each run and its differences to the reference.
+     */
+    private static void print (List<Run> runs, PrintStream out) {
+        Run reference = runs.get(runs.size() - 1);
+
+        out.println("Call Graph comparison, reference: " + reference.algorithm);
+        out.println();
+        out.printf("%-8s %10s %10s %10s %20s%n", "cg", "time(ms)", "edges", "methods", "total dynamic");
+        for (Run run : runs) {
+            long total = 0;
+            for (long dynamic : run.dynamic.values()) {
+                total = CostModel.v().add(total, dynamic);
+            }
+            out.printf("%-8s %10d %10d %10d %20d%n", run.algorithm, run.millis,
+                run.edges, run.dynamic.size(), total);
+        }
+
+        for (Run run : runs) {
+            if (run == reference) {
+                continue;
+            }
+            List<Map.Entry<String, Double>> diffs = new ArrayList<Map.Entry<String, Double>>();
+            double sum = 0;
+            int compared = 0;
+            for (Map.Entry<String, Long> entry : run.dynamic.entrySet()) {
+                Long expected = reference.dynamic.get(entry.getKey());
+                if (expected == null) {
+                    continue;
+                }
+                double diff = relativeDifference(entry.getValue(), expected);
+                compared++;
+                sum += diff;
+                if (diff > 0) {
+                    diffs.add(new AbstractMap.SimpleEntry<String, Double>(entry.getKey(), diff));
+                }
+            }
+            Collections.sort(diffs, (a, b) -> Double.compare(b.getValue(), a.getValue()));
+
+            out.println();
+            out.printf("%s vs %s: %d methods compared, %d differ, mean relative difference %.2f%%%n",
+                run.algorithm, reference.algorithm, compared, diffs.size(),
+                compared == 0 ? 0.0 : 100 * sum / compared);
+            for (int i = 0; i < Math.min(TOP, diffs.size()); i++) {
+                String method = diffs.get(i).getKey();
+                out.printf("    %10.2f%%  %s: %d vs %d%n", 100 * diffs.get(i).getValue(), method,
+                    run.dynamic.get(method), reference.dynamic.get(method));
+            }
+        }
+    }
+
+    /**
+     * @return |value - expected| relative to expected, or to 1 if it is 0.
+     */
+    private static double relativeDifference (long value, long expected) {
+        return Math.abs((double) value - (double) expected) / Math.max(1.0, (double) expected);
+    }
+}
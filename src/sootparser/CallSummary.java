@@ -0,0 +1,124 @@
+package sootparser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+/**
+ * Outgoing Call Graph edges of a method, with the loop depth of the call
+ * site of each one. It is all the propagation needs from a method body, so
+ * once it is computed the body can be released.
+ *
+ * Summaries are normally emitted by Features while it walks the units of
+ * a method, their targets are then resolved to MethodTable ids so that the
+ * propagation runs over int arrays only.
+ *
+ * An edge into a task that runs on another thread, e.g. a Runnable handed
+ * to an executor, has the ASYNC flag set on its depth, so its work can be
+ * weighted apart from inline calls.
+ * @author juniocezar
+ */
+public class CallSummary {
+    public static final CallSummary EMPTY = new CallSummary(new SootMethod[0], new int[0]);
+    public static final int ASYNC = 1 << 30;
+
+    // target of each edge and loop depth of its call site
+    public final SootMethod[] targets;
+    public final int[] depths;
+    // table id of each target, null until resolved
+    int[] ids;
+
+    public CallSummary (SootMethod[] targets, int[] depths) {
+        this.targets = targets;
+        this.depths = depths;
+    }
+
+    /**
+     * Builds a summary from the edges collected while walking a body.
+     * @param targets Target of each edge.
+     * @param depths Loop depth of the call site of each edge.
+     * @return New summary.
+     */
+    public static CallSummary of (List<SootMethod> targets, List<Integer> depths) {
+        if (targets.isEmpty()) {
+            return EMPTY;
+        }
+        int[] d = new int[depths.size()];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = depths.get(i);
+        }
+        return new CallSummary(targets.toArray(new SootMethod[targets.size()]), d);
+    }
+
+    /**
+     * @param edge Call Graph edge.
+     * @param depth Loop depth of its call site.
+     * @return Depth of the edge, flagged ASYNC if it starts a thread or a task.
+     */
+    public static int tag (Edge edge, int depth) {
+        return edge.kind() != null && edge.kind().isThread() ? depth | ASYNC : depth;
+    }
+
+    /**
+     * @return true if an edge depth is flagged ASYNC.
+     */
+    public static boolean isAsync (int depth) {
+        return depth >= 0 && (depth & ASYNC) != 0;
+    }
+
+    /**
+     * @return Loop depth of an edge depth, without its flags.
+     */
+    public static int loopDepth (int depth) {
+        return depth >= 0 ? depth & ~ASYNC : depth;
+    }
+
+    /**
+     * Interns the targets into a table. Not thread safe.
+     * @param table Method table.
+     * @return Table id of each target.
+     */
+    int[] resolve (MethodTable table) {
+        if (ids == null) {
+            int[] resolved = new int[targets.length];
+            for (int i = 0; i < resolved.length; i++) {
+                resolved[i] = table.intern(targets[i]);
+            }
+            ids = resolved;
+        }
+        return ids;
+    }
+
+    /**
+     * Scans the body of a method and collects its outgoing edges. Only used
+     * for methods whose features were not extracted in this run.
+     * @param cg Call Graph.
+     * @param sm Input method, must have a body.
+     * @return Summary of the method.
+     */
+    public static CallSummary of (CallGraph cg, SootMethod sm) {
+        List<SootMethod> targets = new ArrayList<SootMethod>();
+        List<Integer> depths = new ArrayList<Integer>();
+        int[] unitDepth = LoopDepthIndex.v().depths(sm);
+        int ordinal = 0;
+        for (Unit u : sm.retrieveActiveBody().getUnits()) {
+            Stmt s = (Stmt) u;
+            int depth = LoopDepthIndex.depthAt(unitDepth, ordinal++);
+            if (!s.containsInvokeExpr()) {
+                continue;
+            }
+            Iterator<Edge> it = cg.edgesOutOf(u);
+            while (it.hasNext()) {
+                Edge edge = it.next();
+                targets.add(edge.tgt());
+                depths.add(tag(edge, depth));
+            }
+        }
+        return of(targets, depths);
+    }
+}
@@ -0,0 +1,206 @@
+package sootparser;
+
+import dot.graph.DotGraph;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.toolkits.graph.Block;
+import soot.toolkits.graph.BlockGraph;
+import sootparser.utils.Logger;
+
+/**
+ * Writes the CFG of every application method to its own DOT file, built
+ * from the block graph of Features.buildCFG.
+ *
+ * Graphs are built in parallel by the analysis threads and handed over,
+ * through a bounded queue, to a few writer threads, so building never
+ * waits on the disk and at most a queue of graphs is held in memory.
+ * Bodies are built one at a time, as building them changes the Scene,
+ * and with --low-memory each one is released again once its graph is
+ * built, so the bodies the analysis dropped are never all back at once.
+ * Files are named after the class, the method and a hash of its
+ * subsignature, and are overwritten on every run.
+ * @author juniocezar
+ */
+public class CfgExport {
+    // graphs waiting to be written, per writer thread
+    private static final int QUEUE_PER_WRITER = 16;
+
+    // tells a writer there is nothing left to write
+    private static final DotGraph DONE = new DotGraph();
+
+    /**
+     * Writes one DOT file per concrete application method.
+     * @param dir Output directory, created if needed.
+     * @param threads Number of threads building graphs.
+     * @param writers Number of threads writing files.
+     */
+    public static void export (final String dir, int threads, int writers) {
+        new File(dir).mkdirs();
+        final List<SootMethod> methods = new ArrayList<SootMethod>();
+        for (SootClass sclass : StaticAnalyzer.applicationClasses()) {
+            for (SootMethod sm : sclass.getMethods()) {
+                if (sm.isConcrete()) {
+                    methods.add(sm);
+                }
+            }
+        }
+        Logger.info(CfgExport.class, "Writing the CFG of " + methods.size() + " methods to " + dir);
+
+        final BlockingQueue<DotGraph> queue = new ArrayBlockingQueue<DotGraph>(QUEUE_PER_WRITER * writers);
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        List<Thread> pool = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            Thread writer = new Thread(new Runnable() {
+                public void run () {
+                    write(queue, written, failed);
+                }
+            }, "cfg-writer-" + w);
+            writer.start();
+            pool.add(writer);
+        }
+
+        final boolean release = AnalysisOptions.v().lowMemory();
+        ForkJoinPool builders = new ForkJoinPool(threads);
+        try {
+            builders.submit(() -> IntStream.range(0, methods.size()).parallel().forEach(i -> {
+                DotGraph graph = build(methods.get(i), dir, release);
+                if (graph == null) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                try {
+                    queue.put(graph);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            builders.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            builders.shutdown();
+            // the writers must get DONE even if we were interrupted, the
+            // flag is cleared meanwhile and restored afterwards
+            boolean interrupted = Thread.interrupted();
+            for (int w = 0; w < writers; w++) {
+                while (true) {
+                    try {
+                        queue.put(DONE);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            for (Thread writer : pool) {
+                while (true) {
+                    try {
+                        writer.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Logger.info(CfgExport.class, written.get() + " CFGs written, " + failed.get() + " failed");
+    }
+
+    /**
+     * Writer loop: writes graphs until it takes DONE.
+     */
+    private static void write (BlockingQueue<DotGraph> queue, AtomicInteger written, AtomicInteger failed) {
+        while (true) {
+            DotGraph graph;
+            try {
+                graph = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (graph == DONE) {
+                return;
+            }
+            try {
+                graph.genDotFile();
+                written.incrementAndGet();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                Logger.error(CfgExport.class, "Could not write " + graph.getOutput() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Builds the graph of a method: one node per block, holding its units,
+     * blocks that branch are drawn in blue.
+     * @param method Concrete method.
+     * @param dir Output directory.
+     * @param release Releases the body afterwards, unless it was already built.
+     * @return Graph of the method, or null if its body could not be built.
+     */
+    private static DotGraph build (SootMethod method, String dir, boolean release) {
+        boolean loaded = method.hasActiveBody();
+        try {
+            return build(method, dir);
+        } finally {
+            if (release && !loaded && method.hasActiveBody()) {
+                method.releaseActiveBody();
+            }
+        }
+    }
+
+    private static DotGraph build (SootMethod method, String dir) {
+        BlockGraph cfg;
+        try {
+            synchronized (CfgExport.class) {
+                method.retrieveActiveBody();
+            }
+            cfg = Features.buildCFG(method);
+        } catch (RuntimeException e) {
+            if (Logger.enabled(Logger.Level.DEBUG)) {
+                Logger.debug(CfgExport.class, "No CFG for %s: %s", method.getSignature(), e.toString());
+            }
+            return null;
+        }
+        SootClass sclass = method.getDeclaringClass();
+        String file = sclass.getName() + "." + method.getName() + "-" +
+            Integer.toHexString(method.getSubSignature().hashCode()) + ".dot";
+        DotGraph graph = new DotGraph(sclass.getPackageName(), sclass.getName(), method.getName(),
+            dir + File.separator + file);
+
+        for (Block block : cfg.getBlocks()) {
+            List<String> lines = new ArrayList<String>();
+            for (Unit u : block) {
+                lines.add(u.toString());
+            }
+            List<String> succs = new ArrayList<String>();
+            for (Block succ : block.getSuccs()) {
+                succs.add(name(succ));
+            }
+            graph.newNode(lines, name(block), name(block), "record",
+                succs.size() > 1 ? "blue" : "black", succs, false);
+        }
+        return graph;
+    }
+
+    private static String name (Block block) {
+        return "B" + block.getIndexInMethod();
+    }
+}
@@ -0,0 +1,139 @@
+package sootparser;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how many times a call is executed from the loop depth of its
+ * call site: a call nested in d loops weighs base^d. The work of a task
+ * run by another thread, reached through an ASYNC edge, is further scaled
+ * by the async weight. Weights come from a
+ * precomputed table and every operation saturates at Long.MAX_VALUE, so
+ * estimates never wrap around and stay monotonic on large programs.
+ *
+ * Subclasses may plug a different model through {@link #set(CostModel)}.
+ * @author juniocezar
+ */
+public class CostModel {
+    private static CostModel instance = new CostModel(10);
+
+    /**
+     * Number of iterations assumed for each loop.
+     */
+    private final int base;
+    /**
+     * base^d for every depth d below saturation, longer depths saturate.
+     */
+    private final long[] powers;
+    /**
+     * Share of the work of an asynchronous task accounted to the code that
+     * starts it, 1 counts it as if it ran inline.
+     */
+    private final double asyncWeight;
+
+    /**
+     * Constructor.
+     * @param base Number of iterations assumed for each loop, at least 1.
+     */
+    public CostModel (int base) {
+        this(base, 1.0);
+    }
+
+    /**
+     * Constructor.
+     * @param base Number of iterations assumed for each loop, at least 1.
+     * @param asyncWeight Factor applied to the work of asynchronous tasks.
+     */
+    public CostModel (int base, double asyncWeight) {
+        if (base < 1) {
+            throw new IllegalArgumentException("Loop weight must be at least 1, got " + base);
+        }
+        if (asyncWeight < 0) {
+            throw new IllegalArgumentException("Async weight must not be negative, got " + asyncWeight);
+        }
+        this.base = base;
+        this.asyncWeight = asyncWeight;
+
+        // 64 entries are enough, 2^63 already saturates
+        long[] table = new long[64];
+        table[0] = 1;
+        int size = 1;
+        while (size < table.length && table[size - 1] != Long.MAX_VALUE) {
+            table[size] = multiply(table[size - 1], base);
+            size++;
+        }
+        powers = Arrays.copyOf(table, size);
+    }
+
+    public static CostModel v () {
+        return instance;
+    }
+
+    /**
+     * Replaces the model used by the analysis.
+     * @param model New cost model.
+     */
+    public static void set (CostModel model) {
+        instance = model;
+    }
+
+    public int base () {
+        return base;
+    }
+
+    public double asyncWeight () {
+        return asyncWeight;
+    }
+
+    /**
+     * @param depth Loop depth of a call site.
+     * @return Estimated number of executions of the call site.
+     */
+    public long weight (int depth) {
+        if (depth < 0) {
+            return 1;
+        }
+        depth = CallSummary.loopDepth(depth);
+        return depth < powers.length ? powers[depth] : powers[powers.length - 1];
+    }
+
+    /**
+     * Scales a callee count by the weight of its call site.
+     * @param count Number of invocations of the callee.
+     * @param depth Loop depth of the call site.
+     * @return count * weight(depth), times the async weight for ASYNC
+     * edges, saturated.
+     */
+    public long scale (long count, int depth) {
+        long scaled = multiply(count, weight(depth));
+        if (CallSummary.isAsync(depth) && asyncWeight != 1.0) {
+            // the cast saturates at Long.MAX_VALUE
+            scaled = (long) (scaled * asyncWeight);
+        }
+        return scaled;
+    }
+
+    /**
+     * @return a + b, saturated.
+     */
+    public long add (long a, long b) {
+        long r = a + b;
+        // overflow only when both operands have a sign different from the result
+        if (((a ^ r) & (b ^ r)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return r;
+    }
+
+    /**
+     * @return a * b for non negative operands, saturated.
+     */
+    protected static long multiply (long a, long b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        if (a > Long.MAX_VALUE / b) {
+            return Long.MAX_VALUE;
+        }
+        return a * b;
+    }
+}
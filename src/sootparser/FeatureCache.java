@@ -0,0 +1,395 @@
+package sootparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import sootparser.utils.Logger;
+
+/**
+ * Persists the local and propagated features of every method between
+ * runs, keyed by a hash of the bytes of its class file. Classes whose
+ * bytecode did not change are restored from the cache instead of being
+ * analyzed again. Each method also keeps its outgoing edges, target and
+ * flagged call-site loop depth, so propagation does not need its body;
+ * edges to targets that can no longer be found leave the method to be
+ * summarized from its body again.
+ *
+ * The cache is a single binary file: a header with the cost model it was
+ * computed with, its loop base and async weight, a string table holding
+ * every class name and signature once, and then the classes, each with
+ * its hash and method entries.
+ * @author juniocezar
+ */
+public class FeatureCache {
+    private static final int MAGIC = 0x53464331;
+    private static final int VERSION = 4;
+
+    private File file;
+    private Map<String, CachedClass> classes;
+    // hashes computed during this run, by class name
+    private Map<String, Long> hashes;
+    // opened jar files of the soot class path
+    private Map<String, ZipFile> jars;
+
+    private static class CachedMethod {
+        String subSignature;
+        long staticInvokations;
+        long approxDynamicInvokations;
+        // signature and depth of each outgoing edge, null if not summarized
+        String[] targets;
+        int[] depths;
+        // propagated counts, only valid if propagated is set
+        boolean propagated;
+        long propagatedStatic;
+        long propagatedDynamic;
+    }
+
+    private static class CachedClass {
+        long hash;
+        List<CachedMethod> methods = new ArrayList<CachedMethod>();
+    }
+
+    public FeatureCache (File file) {
+        this.file = file;
+        classes = new LinkedHashMap<String, CachedClass>();
+        hashes = new HashMap<String, Long>();
+        jars = new HashMap<String, ZipFile>();
+    }
+
+    /**
+     * Loads the cache file. A missing, corrupt or outdated file results in
+     * an empty cache.
+     */
+    public void load () {
+        classes.clear();
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            // propagated counts depend on the whole cost model
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    in.readInt() != CostModel.v().base() ||
+                    Double.compare(in.readDouble(), CostModel.v().asyncWeight()) != 0) {
+                Logger.error(FeatureCache.class, "Ignoring outdated feature cache " + file);
+                return;
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            int classCount = in.readInt();
+            for (int c = 0; c < classCount; c++) {
+                String name = strings[in.readInt()];
+                CachedClass cached = new CachedClass();
+                cached.hash = in.readLong();
+                int methodCount = in.readInt();
+                for (int m = 0; m < methodCount; m++) {
+                    CachedMethod method = new CachedMethod();
+                    method.subSignature = strings[in.readInt()];
+                    method.staticInvokations = in.readLong();
+                    method.approxDynamicInvokations = in.readLong();
+                    int edges = in.readInt();
+                    if (edges >= 0) {
+                        method.targets = new String[edges];
+                        method.depths = new int[edges];
+                        for (int e = 0; e < edges; e++) {
+                            method.targets[e] = strings[in.readInt()];
+                            method.depths[e] = in.readInt();
+                        }
+                    }
+                    method.propagated = in.readBoolean();
+                    if (method.propagated) {
+                        method.propagatedStatic = in.readLong();
+                        method.propagatedDynamic = in.readLong();
+                    }
+                    cached.methods.add(method);
+                }
+                classes.put(name, cached);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.error(FeatureCache.class, "Ignoring unreadable feature cache " + file + ": " + e.getMessage());
+            classes.clear();
+        }
+    }
+
+    /**
+     * Writes the cache file.
+     */
+    public void save () {
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, CachedClass> entry : classes.entrySet()) {
+            intern(strings, entry.getKey());
+            for (CachedMethod method : entry.getValue().methods) {
+                intern(strings, method.subSignature);
+                if (method.targets != null) {
+                    for (String target : method.targets) {
+                        intern(strings, target);
+                    }
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(CostModel.v().base());
+            out.writeDouble(CostModel.v().asyncWeight());
+            out.writeInt(strings.size());
+            for (String s : strings.keySet()) {
+                out.writeUTF(s);
+            }
+            out.writeInt(classes.size());
+            for (Map.Entry<String, CachedClass> entry : classes.entrySet()) {
+                CachedClass cached = entry.getValue();
+                out.writeInt(strings.get(entry.getKey()));
+                out.writeLong(cached.hash);
+                out.writeInt(cached.methods.size());
+                for (CachedMethod method : cached.methods) {
+                    out.writeInt(strings.get(method.subSignature));
+                    out.writeLong(method.staticInvokations);
+                    out.writeLong(method.approxDynamicInvokations);
+                    if (method.targets == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(method.targets.length);
+                        for (int e = 0; e < method.targets.length; e++) {
+                            out.writeInt(strings.get(method.targets[e]));
+                            out.writeInt(method.depths[e]);
+                        }
+                    }
+                    out.writeBoolean(method.propagated);
+                    if (method.propagated) {
+                        out.writeLong(method.propagatedStatic);
+                        out.writeLong(method.propagatedDynamic);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.error(FeatureCache.class, "Could not write feature cache " + file + ": " + e.getMessage());
+        }
+        closeJars();
+    }
+
+    private static void intern (Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+
+    /**
+     * Checks if the cached features of a class can be reused.
+     * @param sclass Input class.
+     * @return true if the class file did not change since it was cached.
+     */
+    public boolean isUpToDate (SootClass sclass) {
+        CachedClass cached = classes.get(sclass.getName());
+        long hash = hash(sclass);
+        return cached != null && hash != 0 && cached.hash == hash && matches(cached, sclass);
+    }
+
+    /**
+     * Checks if a class has an entry, without looking at its class file.
+     * @param sclass Input class.
+     * @return true if the class was cached by a previous run, with the
+     * methods it has now.
+     */
+    public boolean contains (SootClass sclass) {
+        CachedClass cached = classes.get(sclass.getName());
+        return cached != null && matches(cached, sclass);
+    }
+
+    /**
+     * @return true if the entry of a class holds exactly its methods, so
+     * each one can be restored.
+     */
+    private static boolean matches (CachedClass cached, SootClass sclass) {
+        if (cached.methods.size() != sclass.getMethods().size()) {
+            return false;
+        }
+        for (CachedMethod method : cached.methods) {
+            if (sclass.getMethodUnsafe(method.subSignature) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the entry of a class and forgets its hash, the class file is
+     * read again when the class is stored.
+     * @param sclass Input class.
+     */
+    public void invalidate (SootClass sclass) {
+        classes.remove(sclass.getName());
+        hashes.remove(sclass.getName());
+    }
+
+    /**
+     * Restores the cached features of every method of a class, and its
+     * outgoing edges when all their targets are still in the Scene.
+     * @param sclass Class whose cache entry is up to date.
+     * @param table Table receiving the features.
+     * @param propagated Whether propagated features are restored too.
+     */
+    public void restore (SootClass sclass, MethodTable table, boolean propagated) {
+        for (CachedMethod method : classes.get(sclass.getName()).methods) {
+            SootMethod sm = sclass.getMethod(method.subSignature);
+            int id = table.intern(sm);
+            table.setLocal(id, new Features(sm, method.staticInvokations,
+                method.approxDynamicInvokations), MethodTable.LOCAL);
+            table.setSummary(id, summary(method));
+            if (propagated && method.propagated) {
+                table.setPropagated(id, method.propagatedStatic, method.propagatedDynamic);
+            }
+        }
+    }
+
+    /**
+     * @return Outgoing edges of a cached method, null if it has none cached
+     * or one of their targets is gone.
+     */
+    private static CallSummary summary (CachedMethod method) {
+        if (method.targets == null) {
+            return null;
+        }
+        SootMethod[] targets = new SootMethod[method.targets.length];
+        for (int e = 0; e < targets.length; e++) {
+            targets[e] = Scene.v().grabMethod(method.targets[e]);
+            if (targets[e] == null) {
+                return null;
+            }
+        }
+        return targets.length == 0 ? CallSummary.EMPTY : new CallSummary(targets, method.depths);
+    }
+
+    /**
+     * Replaces the cache entry of a class. The class file is only hashed
+     * if this run has neither hashed nor cached it before.
+     * @param sclass Input class.
+     * @param table Local and propagated features of its methods.
+     */
+    public void store (SootClass sclass, MethodTable table) {
+        CachedClass previous = classes.get(sclass.getName());
+        long hash = hashes.containsKey(sclass.getName()) || previous == null ?
+            hash(sclass) : previous.hash;
+        if (hash == 0) {
+            classes.remove(sclass.getName());
+            return;
+        }
+        CachedClass cached = new CachedClass();
+        cached.hash = hash;
+        for (SootMethod sm : sclass.getMethods()) {
+            int id = table.id(sm);
+            if (id < 0 || !table.has(id, MethodTable.LOCAL) || AnalysisBudget.v().isTruncated(sm)) {
+                // incomplete entries would be restored as if they were exact
+                classes.remove(sclass.getName());
+                return;
+            }
+            Features f = table.local(id);
+            CachedMethod method = new CachedMethod();
+            method.subSignature = sm.getSubSignature();
+            method.staticInvokations = f.staticInvokations;
+            method.approxDynamicInvokations = f.approxDynamicInvokations;
+            CallSummary summary = table.summary(id);
+            if (summary != null) {
+                method.targets = new String[summary.targets.length];
+                for (int e = 0; e < method.targets.length; e++) {
+                    method.targets[e] = summary.targets[e].getSignature();
+                }
+                method.depths = summary.depths;
+            }
+            if (table.has(id, MethodTable.PROPAGATED)) {
+                method.propagated = true;
+                method.propagatedStatic = table.staticOf(id);
+                method.propagatedDynamic = table.dynamicOf(id);
+            }
+            cached.methods.add(method);
+        }
+        classes.put(sclass.getName(), cached);
+    }
+
+    /**
+     * Hashes the class file of a class, found in the soot class path.
+     * @param sclass Input class.
+     * @return First 8 bytes of the SHA-1 of the class file, 0 if not found.
+     */
+    public long hash (SootClass sclass) {
+        Long hash = hashes.get(sclass.getName());
+        if (hash == null) {
+            hash = 0L;
+            try (InputStream in = openClassFile(sclass.getName())) {
+                if (in != null) {
+                    MessageDigest sha = MessageDigest.getInstance("SHA-1");
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        sha.update(buffer, 0, read);
+                    }
+                    byte[] digest = sha.digest();
+                    for (int i = 0; i < 8; i++) {
+                        hash = (hash << 8) | (digest[i] & 0xff);
+                    }
+                }
+            } catch (IOException | NoSuchAlgorithmException e) {
+                hash = 0L;
+            }
+            hashes.put(sclass.getName(), hash);
+        }
+        return hash;
+    }
+
+    private InputStream openClassFile (String className) throws IOException {
+        String entry = className.replace('.', '/') + ".class";
+        for (String path : Scene.v().getSootClassPath().split(File.pathSeparator)) {
+            File location = new File(path);
+            if (location.isDirectory()) {
+                File classFile = new File(location, entry);
+                if (classFile.isFile()) {
+                    return new FileInputStream(classFile);
+                }
+            } else if (location.isFile()) {
+                ZipFile jar = jars.get(path);
+                if (jar == null) {
+                    jar = new ZipFile(location);
+                    jars.put(path, jar);
+                }
+                ZipEntry zipEntry = jar.getEntry(entry);
+                if (zipEntry != null) {
+                    return jar.getInputStream(zipEntry);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void closeJars () {
+        for (ZipFile jar : jars.values()) {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                // nothing left to read from it
+            }
+        }
+        jars.clear();
+    }
+}
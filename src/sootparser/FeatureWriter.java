@@ -0,0 +1,202 @@
+package sootparser;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import sootparser.utils.Logger;
+
+/**
+ * Streams the features of each method through a single buffered channel,
+ * one record per method, as CSV, JSON lines or a compact binary format.
+ *
+ * The binary format starts with the magic number 0x53465731 and holds,
+ * for each method: the length of its UTF-8 signature as an int, the
+ * signature bytes, and four longs: local static and dynamic invocations,
+ * then propagated static and dynamic invocations.
+ * @author juniocezar
+ */
+public class FeatureWriter implements Closeable {
+    private static final int MAGIC = 0x53465731;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public enum Format { CSV, JSONL, BINARY }
+
+    private WritableByteChannel channel;
+    // the standard output is flushed but never closed
+    private boolean ownsChannel;
+    private Format format;
+    private ByteBuffer buffer;
+    private CharsetEncoder encoder;
+    // reused for every text record
+    private StringBuilder line;
+
+    public FeatureWriter (WritableByteChannel channel, Format format) throws IOException {
+        this(channel, format, true);
+    }
+
+    private FeatureWriter (WritableByteChannel channel, Format format, boolean ownsChannel)
+            throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.format = format;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        encoder = StandardCharsets.UTF_8.newEncoder();
+        line = new StringBuilder(256);
+        writeHeader();
+    }
+
+    /**
+     * Opens a writer on a file, or on the standard output if path is "-".
+     * @param path Output file.
+     * @param format Output format.
+     * @return New writer.
+     */
+    public static FeatureWriter open (String path, Format format) throws IOException {
+        if (path.equals("-")) {
+            Logger.flush();
+            return new FeatureWriter(Channels.newChannel(System.out), format, false);
+        }
+        return new FeatureWriter(new FileOutputStream(path).getChannel(), format, true);
+    }
+
+    private void writeHeader () throws IOException {
+        switch (format) {
+            case CSV:
+                writeText("method,static,dynamic,propagated_static,propagated_dynamic\n");
+                break;
+            case BINARY:
+                ensure(4);
+                buffer.putInt(MAGIC);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Writes the record of a single method.
+     * @param signature Signature of the method.
+     * @param local Features extracted from the method body.
+     * @param propagated Features including its callees, same as local if the
+     * method was not propagated.
+     */
+    public void write (String signature, Features local, Features propagated) throws IOException {
+        write(signature, local.staticInvokations, local.approxDynamicInvokations,
+            propagated.staticInvokations, propagated.approxDynamicInvokations);
+    }
+
+    /**
+     * Writes the record of a single method from its counts.
+     * @param signature Signature of the method.
+     * @param localStatic Static invocations of the method body.
+     * @param localDynamic Estimated dynamic invocations of the method body.
+     * @param propagatedStatic Static invocations including its callees.
+     * @param propagatedDynamic Dynamic invocations including its callees.
+     */
+    public void write (String signature, long localStatic, long localDynamic,
+            long propagatedStatic, long propagatedDynamic) throws IOException {
+        line.setLength(0);
+        switch (format) {
+            case CSV:
+                line.append('"');
+                for (int i = 0; i < signature.length(); i++) {
+                    char c = signature.charAt(i);
+                    if (c == '"') {
+                        line.append('"');
+                    }
+                    line.append(c);
+                }
+                line.append("\",").append(localStatic)
+                    .append(',').append(localDynamic)
+                    .append(',').append(propagatedStatic)
+                    .append(',').append(propagatedDynamic).append('\n');
+                writeText(line);
+                break;
+            case JSONL:
+                line.append("{\"method\":\"");
+                escapeJson(signature);
+                line.append("\",\"static\":").append(localStatic)
+                    .append(",\"dynamic\":").append(localDynamic)
+                    .append(",\"propagated_static\":").append(propagatedStatic)
+                    .append(",\"propagated_dynamic\":").append(propagatedDynamic)
+                    .append("}\n");
+                writeText(line);
+                break;
+            case BINARY:
+                byte[] bytes = signature.getBytes(StandardCharsets.UTF_8);
+                ensure(4);
+                buffer.putInt(bytes.length);
+                int offset = 0;
+                while (offset < bytes.length) {
+                    ensure(1);
+                    int n = Math.min(buffer.remaining(), bytes.length - offset);
+                    buffer.put(bytes, offset, n);
+                    offset += n;
+                }
+                ensure(32);
+                buffer.putLong(localStatic);
+                buffer.putLong(localDynamic);
+                buffer.putLong(propagatedStatic);
+                buffer.putLong(propagatedDynamic);
+                break;
+        }
+    }
+
+    private void escapeJson (String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    /**
+     * Encodes text straight into the buffer, flushing it when full.
+     */
+    private void writeText (CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flush();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void ensure (int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void flush () throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close () throws IOException {
+        flush();
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package sootparser;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import soot.Body;
 import soot.FastHierarchy;
 import soot.Hierarchy;
@@ -16,6 +16,8 @@ import soot.Unit;
 import soot.Value;
 import soot.jimple.*;
 import soot.jimple.internal.*;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
 import soot.toolkits.graph.LoopNestTree;
 import soot.Type;
 
@@ -31,6 +33,7 @@ import soot.toolkits.graph.UnitGraph;
 import soot.toolkits.scalar.Pair;
 import soot.util.Chain;
 import soot.util.Switchable;
+import sootparser.utils.Logger;
 
 
 public class Features {
@@ -40,68 +43,62 @@ public class Features {
     // total number of invocations
     public long staticInvokations;
     public long approxDynamicInvokations;    
-    // CFG Block representation of the method
-    private BlockGraph cfg;
+    // outgoing Call Graph edges, only set when extracted with a Call Graph
+    public CallSummary summary;
+    private CallGraph cg;
 
     /**
      * Constructor.
      * @param target Method to be analyzed.
      */
     public Features(SootMethod target) {
+        this(target, null);
+    }
+
+    /**
+     * Constructor, also summarizes the outgoing edges of the method.
+     * @param target Method to be analyzed.
+     * @param cg Call Graph, or null to skip the summary.
+     */
+    public Features(SootMethod target, CallGraph cg) {
         method = target;
+        this.cg = cg;
         staticInvokations = 0;
         try {
-            if (!isLibraryClass(target.getDeclaringClass())) {
-                System.out.printf("Collecting invocations for for Method " + method.toString());
-                buildCFG();
+            if (LibraryFilter.v().isLibraryClass(target.getDeclaringClass())) {
+                // library methods are never extracted
+            } else if (AnalysisBudget.v().exhausted()) {
+                AnalysisBudget.v().skip(target, "extraction");
+            } else {
                 extractFeatures();
             }            
         } catch (RuntimeException e) {
-                 System.err.println("Invocations for method: " + target.getSignature() +
+                 Logger.error(Features.class, "Invocations for method: " + target.getSignature() +
                     " were ignored, due to internal fail!");
                 //e.printStackTrace();
         }
     }
 
-    private static boolean isLibraryClass (SootClass sclass) {
-        String pack = sclass.getPackageName();
-        String[] libs = {"java.", "jdk.", "soot.","sun.", "oracle.", "scala."};
-
-        for (String lib : libs) {
-            if (pack.startsWith(lib)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Builds unit CFG
-     */
-    private void buildCFG () {
-        this.cfg = new ClassicCompleteBlockGraph(this.method.retrieveActiveBody());
-        //this.cfg = new BriefBlockGraph(this.method.retrieveActiveBody());
-    }
-
     /**
-     * Merges two Feature objects;
-     * @param other Feature object to be merged into this object.
+     * Restores previously computed features, no analysis is performed.
+     * @param target Method the features belong to.
+     * @param staticInvokations Number of call sites.
+     * @param approxDynamicInvokations Estimated number of executed calls.
      */
-    public void addFeaturesFrom (Features other) {
-        addFeaturesFrom(other, 0);
+    public Features(SootMethod target, long staticInvokations, long approxDynamicInvokations) {
+        method = target;
+        this.staticInvokations = staticInvokations;
+        this.approxDynamicInvokations = approxDynamicInvokations;
     }
 
     /**
-     * Merges two Feature objects taking into account the call depth;
-     * @param other Feature object to be merged into this object.
-     * @param callDepth Call depth.
+     * Builds unit CFG
+     * @param method Method with a body.
+     * @return Block graph of the method.
      */
-    public void addFeaturesFrom (Features other, Integer callDepth) {
-        int base = 10;
-        long m = (long) Math.pow(base, callDepth);
-        this.approxDynamicInvokations += other.approxDynamicInvokations * m;
-        this.staticInvokations += other.staticInvokations;
+    static BlockGraph buildCFG (SootMethod method) {
+        return new ClassicCompleteBlockGraph(method.retrieveActiveBody());
+        //return new BriefBlockGraph(method.retrieveActiveBody());
     }
 
     public String serialize () {
@@ -113,64 +110,59 @@ public class Features {
         // https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-2.html
         // Baf Reference: Page 13 of
         // https://courses.cs.washington.edu/courses/cse501/01wi/project/sable-thesis.pdf
+        // building the body and its loop nest can take longer than the units
+        AnalysisBudget.Meter meter = AnalysisBudget.v().meter(method, "extraction");
         Body body = method.retrieveActiveBody();
         PatchingChain<Unit> units = body.getUnits();
+        if (!meter.check()) {
+            return;
+        }
 
-        Map<Unit, Integer> unitDepth = calculateInstructionDepth(method);
-        Set<String> uniqueInv = new HashSet<String>();
-        int base = 10;
+        int[] unitDepth = LoopDepthIndex.v().depths(method);
+        if (!meter.check()) {
+            return;
+        }
+        List<SootMethod> targets = new ArrayList<SootMethod>();
+        List<Integer> targetDepths = new ArrayList<Integer>();
+        CostModel model = CostModel.v();
+        boolean verbose = Logger.enabled(Logger.Level.TRACE);
+        int ordinal = 0;
 
         for (Unit u : units) {        
+            if (!meter.tick()) {
+                // what was counted so far is kept, as a lower bound
+                break;
+            }
             //
             // Using the unit depth to 'estimate' the amount of times it will be
             // be executed.            
+            int depth = LoopDepthIndex.depthAt(unitDepth, ordinal++);
             SootMethod m = isMethodCall(u);
             if (m != null) {
-                long inc = (long) Math.pow(base, unitDepth.getOrDefault(u, 0));
-                System.out.println("    ➡️   Found " + m.getSignature() + " at depth " + 
-                    Integer.toString(unitDepth.getOrDefault(u, 0)));
-                uniqueInv.add(m.getSignature());
-                this.approxDynamicInvokations += inc;
+                long inc = model.weight(depth);
+                if (verbose) {
+                    Logger.trace(Features.class, "Found %s at depth %d", m.getSignature(), depth);
+                }
+                this.approxDynamicInvokations = model.add(this.approxDynamicInvokations, inc);
                 this.staticInvokations += 1;
             }
-        }
-
-        //this.staticInvokations = uniqueInv.size();
-        System.out.println(" || Static: " + Long.toString(this.staticInvokations));
-    }
-
-    /**
-     * Calculates the depth of each instruction in the LoopNestTree obj.
-     * @param sm Input method, from which will be calculated instruction depth.
-     * @return A Map<Unit, Integer> containing the depth of each unit.
-     */
-    private Map<Unit, Integer> calculateInstructionDepth (SootMethod sm) {
-        // First we analyze all Units (statements) within loops
-        Body body = sm.retrieveActiveBody();
-        LoopNestTree loopNestTree = new LoopNestTree(body);
-        Map<Unit, Integer> idepth = new HashMap<Unit, Integer>();
-
-        if (!loopNestTree.isEmpty()) {
-            for (Loop initloop : loopNestTree) {
-                int depth = 1;
-                Loop loop = loopNestTree.higher(initloop);
-                //
-                // walk on the tree up to the root, so we can define our
-                // nested level
-                while (loop != null) {
-                    depth++;
-                    loop = loopNestTree.higher(loop);
-                }
-                List<Stmt> loopBody = initloop.getLoopStatements();
-                for (Stmt s : loopBody) {
-                    Integer currentDepth = idepth.getOrDefault(s, 1);
-                    if (depth >= currentDepth) {
-                        idepth.put(s, depth);
-                    }
+            if (cg != null && ((Stmt) u).containsInvokeExpr()) {
+                Iterator<Edge> it = cg.edgesOutOf(u);
+                while (it.hasNext()) {
+                    Edge edge = it.next();
+                    targets.add(edge.tgt());
+                    targetDepths.add(CallSummary.tag(edge, depth));
                 }
             }
         }
-        return idepth;
+        if (cg != null) {
+            summary = CallSummary.of(targets, targetDepths);
+        }
+
+        if (Logger.enabled(Logger.Level.DEBUG)) {
+            Logger.debug(Features.class, "Collected invocations for method %s || Static: %d",
+                method.getSignature(), this.staticInvokations);
+        }
     }
 
     /**
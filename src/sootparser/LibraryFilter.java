@@ -0,0 +1,179 @@
+package sootparser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.SootClass;
+
+/**
+ * Decides which classes belong to libraries. Library classes are neither
+ * analyzed nor propagated to, and the Call Graph extension stops at them.
+ *
+ * Rules are package globs: "a.b.*" matches package a.b and all of its
+ * subpackages, "a.b" matches that package only, and "*" matches every
+ * package. They are kept in a trie indexed by package segment, so a lookup
+ * costs one step per segment, and the most specific matching rule wins.
+ * The result of each class is memoized.
+ *
+ * A config file, given with --exclude-config, holds one rule per line:
+ * <pre>
+ * # vendored frameworks
+ * exclude com.acme.vendor.*
+ * include com.acme.vendor.patched.*
+ * </pre>
+ * Its rules are added on top of the default ones, which exclude the JDK,
+ * Soot and Scala packages.
+ * @author juniocezar
+ */
+public class LibraryFilter {
+    private static final String[] DEFAULT_EXCLUDES = {
+        "java.*", "jdk.*", "soot.*", "sun.*", "oracle.*", "scala.*"
+    };
+
+    private static LibraryFilter instance = new LibraryFilter();
+
+    /**
+     * Trie node, one per package segment.
+     */
+    private static class Node {
+        Map<String, Node> children = new HashMap<String, Node>();
+        // rule for this package and its subpackages, null if none
+        Boolean subtree;
+        // rule for this package only, null if none
+        Boolean exact;
+    }
+
+    private Node root;
+    private Map<SootClass, Boolean> memo;
+
+    /**
+     * Constructor, with the default rules.
+     */
+    public LibraryFilter () {
+        root = new Node();
+        memo = new ConcurrentHashMap<SootClass, Boolean>();
+        for (String glob : DEFAULT_EXCLUDES) {
+            addRule(glob, true);
+        }
+    }
+
+    public static LibraryFilter v () {
+        return instance;
+    }
+
+    /**
+     * Replaces the filter used by the analysis.
+     * @param filter New filter.
+     */
+    public static void set (LibraryFilter filter) {
+        instance = filter;
+    }
+
+    /**
+     * Creates a filter with the default rules plus the rules of a config file.
+     * @param path Config file.
+     * @return New filter.
+     */
+    public static LibraryFilter load (String path) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read exclusion config " + path, e);
+        }
+
+        LibraryFilter filter = new LibraryFilter();
+        int number = 0;
+        for (String line : lines) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2 ||
+                    !(fields[0].equals("include") || fields[0].equals("exclude"))) {
+                throw new IllegalArgumentException(path + ":" + number +
+                    ": expected 'include <glob>' or 'exclude <glob>', got '" + line + "'");
+            }
+            filter.addRule(fields[1], fields[0].equals("exclude"));
+        }
+        return filter;
+    }
+
+    /**
+     * Adds a rule, replacing any previous rule for the same glob.
+     * @param glob Package glob.
+     * @param exclude true to exclude the matching packages, false to include them.
+     */
+    public void addRule (String glob, boolean exclude) {
+        boolean subtree = glob.equals("*") || glob.endsWith(".*");
+        String pack = subtree ? glob.substring(0, Math.max(0, glob.length() - 2)) : glob;
+        if (pack.contains("*")) {
+            throw new IllegalArgumentException("Wildcards are only allowed as the last segment: " + glob);
+        }
+
+        Node node = root;
+        if (!pack.isEmpty()) {
+            for (String segment : pack.split("\\.")) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (subtree) {
+            node.subtree = exclude;
+        } else {
+            node.exact = exclude;
+        }
+        memo.clear();
+    }
+
+    /**
+     * Checks if input class is member of a library package.
+     * @param sclass Input class.
+     * @return true if class is member of a library package, false otherwise.
+     */
+    public boolean isLibraryClass (SootClass sclass) {
+        Boolean library = memo.get(sclass);
+        if (library == null) {
+            library = isLibraryPackage(sclass.getPackageName());
+            memo.put(sclass, library);
+        }
+        return library;
+    }
+
+    /**
+     * Checks if a package is excluded, without memoization.
+     * @param pack Package name, empty for the default package.
+     * @return true if the most specific rule matching the package excludes it.
+     */
+    public boolean isLibraryPackage (String pack) {
+        Node node = root;
+        boolean library = root.subtree != null && root.subtree;
+        int start = 0;
+        while (node != null && start < pack.length()) {
+            int end = pack.indexOf('.', start);
+            if (end < 0) {
+                end = pack.length();
+            }
+            node = node.children.get(pack.substring(start, end));
+            if (node != null && node.subtree != null) {
+                library = node.subtree;
+            }
+            start = end + 1;
+        }
+        if (node != null && node.exact != null) {
+            library = node.exact;
+        }
+        return library;
+    }
+}
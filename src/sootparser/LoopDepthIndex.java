@@ -0,0 +1,111 @@
+package sootparser;
+
+import java.lang.ref.SoftReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.Body;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.annotation.logic.Loop;
+import soot.toolkits.graph.LoopNestTree;
+
+/**
+ * Caches the loop depth of every instruction, per method, so the loop nest
+ * of a method is computed once and shared by all phases of the analysis.
+ * Depths are kept in an int array indexed by the position of the unit in
+ * the method body. Entries are softly referenced, the JVM drops them when
+ * memory runs low and they are computed again on demand.
+ * @author juniocezar
+ */
+public class LoopDepthIndex {
+    private static LoopDepthIndex instance = new LoopDepthIndex();
+
+    /**
+     * Shared by all methods without loops.
+     */
+    private static final int[] NO_LOOPS = new int[0];
+
+    private Map<SootMethod, SoftReference<int[]>> cache;
+
+    private LoopDepthIndex () {
+        cache = new ConcurrentHashMap<SootMethod, SoftReference<int[]>>();
+    }
+
+    public static LoopDepthIndex v () {
+        return instance;
+    }
+
+    /**
+     * Returns the depth of each instruction in the LoopNestTree of a method.
+     * Read it with {@link #depthAt(int[], int)}.
+     * @param sm Input method, from which will be calculated instruction depth.
+     * @return Depth of each unit, indexed by its position in the body.
+     */
+    public int[] depths (SootMethod sm) {
+        SoftReference<int[]> ref = cache.get(sm);
+        int[] depths = ref != null ? ref.get() : null;
+        if (depths == null) {
+            depths = calculateInstructionDepth(sm.retrieveActiveBody());
+            cache.put(sm, new SoftReference<int[]>(depths));
+        }
+        return depths;
+    }
+
+    /**
+     * @param depths Array returned by {@link #depths(SootMethod)}.
+     * @param ordinal Position of the unit in the method body.
+     * @return Loop depth of the unit, 0 when it is outside any loop.
+     */
+    public static int depthAt (int[] depths, int ordinal) {
+        return ordinal < depths.length ? depths[ordinal] : 0;
+    }
+
+    /**
+     * Drops the cached depths of a method.
+     * @param sm Method to be evicted.
+     */
+    public void evict (SootMethod sm) {
+        cache.remove(sm);
+    }
+
+    public void clear () {
+        cache.clear();
+    }
+
+    /**
+     * Calculates the depth of each instruction in the LoopNestTree obj.
+     * A loop is one level deeper than every loop after it in the tree, so
+     * the tree is walked once from the outermost loop down.
+     * @param body Body of the method.
+     * @return Depth of each unit, indexed by its position in the body.
+     */
+    private static int[] calculateInstructionDepth (Body body) {
+        LoopNestTree loopNestTree = new LoopNestTree(body);
+        if (loopNestTree.isEmpty()) {
+            return NO_LOOPS;
+        }
+
+        Map<Unit, Integer> ordinals = new IdentityHashMap<Unit, Integer>();
+        for (Unit u : body.getUnits()) {
+            ordinals.put(u, ordinals.size());
+        }
+
+        int[] idepth = new int[ordinals.size()];
+        int depth = 0;
+        Iterator<Loop> it = loopNestTree.descendingIterator();
+        while (it.hasNext()) {
+            depth++;
+            // depth only grows, inner loops overwrite outer ones
+            for (Stmt s : it.next().getLoopStatements()) {
+                Integer ordinal = ordinals.get(s);
+                if (ordinal != null) {
+                    idepth[ordinal] = depth;
+                }
+            }
+        }
+        return idepth;
+    }
+}
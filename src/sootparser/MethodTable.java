@@ -0,0 +1,162 @@
+package sootparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import soot.SootMethod;
+
+/**
+ * Interns methods to dense int ids and keeps their features in parallel
+ * columns, so reading the features of a method on the propagation hot path
+ * is a single array access instead of up to three map lookups.
+ *
+ * Interning is not thread safe. Ids must be assigned before parallel
+ * phases start, workers may then fill distinct rows concurrently.
+ * @author juniocezar
+ */
+public class MethodTable {
+    // row flags
+    public static final byte LOCAL = 1;
+    public static final byte LIBRARY = 2;
+    public static final byte PROPAGATED = 4;
+
+    private Map<SootMethod, Integer> ids;
+    private SootMethod[] methods;
+    private byte[] flags;
+    private long[] staticInvokations;
+    private long[] approxDynamicInvokations;
+    private long[] propagatedStatic;
+    private long[] propagatedDynamic;
+    // outgoing edges of each extracted method
+    private CallSummary[] summaries;
+    private int size;
+
+    public MethodTable () {
+        ids = new HashMap<SootMethod, Integer>();
+        grow(1024);
+    }
+
+    private void grow (int capacity) {
+        methods = methods == null ? new SootMethod[capacity] : Arrays.copyOf(methods, capacity);
+        flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+        staticInvokations = grow(staticInvokations, capacity);
+        approxDynamicInvokations = grow(approxDynamicInvokations, capacity);
+        propagatedStatic = grow(propagatedStatic, capacity);
+        propagatedDynamic = grow(propagatedDynamic, capacity);
+        summaries = summaries == null ? new CallSummary[capacity] : Arrays.copyOf(summaries, capacity);
+    }
+
+    private static long[] grow (long[] column, int capacity) {
+        return column == null ? new long[capacity] : Arrays.copyOf(column, capacity);
+    }
+
+    /**
+     * Returns the id of a method, assigning a new one if needed.
+     * @param sm Input method.
+     * @return Dense id of the method.
+     */
+    public int intern (SootMethod sm) {
+        Integer id = ids.get(sm);
+        if (id == null) {
+            if (size == methods.length) {
+                grow(size * 2);
+            }
+            id = size++;
+            ids.put(sm, id);
+            methods[id] = sm;
+        }
+        return id;
+    }
+
+    /**
+     * @param sm Input method.
+     * @return Id of the method, -1 if it was never interned.
+     */
+    public int id (SootMethod sm) {
+        Integer id = ids.get(sm);
+        return id == null ? -1 : id;
+    }
+
+    public SootMethod method (int id) {
+        return methods[id];
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean has (int id, byte flag) {
+        return (flags[id] & flag) != 0;
+    }
+
+    /**
+     * Stores the features extracted from a method body.
+     * @param id Id of the method.
+     * @param features Extracted features.
+     * @param flag LOCAL for application methods, LIBRARY otherwise.
+     */
+    public void setLocal (int id, Features features, byte flag) {
+        staticInvokations[id] = features.staticInvokations;
+        approxDynamicInvokations[id] = features.approxDynamicInvokations;
+        summaries[id] = features.summary;
+        flags[id] = (byte) ((flags[id] & PROPAGATED) | flag);
+    }
+
+    public void setPropagated (int id, long staticCount, long dynamicCount) {
+        propagatedStatic[id] = staticCount;
+        propagatedDynamic[id] = dynamicCount;
+        flags[id] |= PROPAGATED;
+    }
+
+    public void clearPropagated (int id) {
+        flags[id] &= ~PROPAGATED;
+    }
+
+    /**
+     * @return Outgoing edges of a method, null if they were not summarized.
+     */
+    public CallSummary summary (int id) {
+        return summaries[id];
+    }
+
+    public void setSummary (int id, CallSummary summary) {
+        summaries[id] = summary;
+    }
+
+    public long localStatic (int id) {
+        return staticInvokations[id];
+    }
+
+    public long localDynamic (int id) {
+        return approxDynamicInvokations[id];
+    }
+
+    /**
+     * @return Propagated static count if present, local count otherwise.
+     */
+    public long staticOf (int id) {
+        return (flags[id] & PROPAGATED) != 0 ? propagatedStatic[id] : staticInvokations[id];
+    }
+
+    /**
+     * @return Propagated dynamic count if present, local count otherwise.
+     */
+    public long dynamicOf (int id) {
+        return (flags[id] & PROPAGATED) != 0 ? propagatedDynamic[id] : approxDynamicInvokations[id];
+    }
+
+    /**
+     * @return New Features object holding the local features of a method.
+     */
+    public Features local (int id) {
+        return new Features(methods[id], staticInvokations[id], approxDynamicInvokations[id]);
+    }
+
+    /**
+     * @return New Features object holding the propagated features of a
+     * method, or its local ones if it was not propagated.
+     */
+    public Features features (int id) {
+        return new Features(methods[id], staticOf(id), dynamicOf(id));
+    }
+}
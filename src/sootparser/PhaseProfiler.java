@@ -0,0 +1,262 @@
+package sootparser;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.SootMethod;
+import sootparser.utils.Logger;
+
+/**
+ * Records wall time, CPU time, allocated bytes and item counts of the
+ * phases of a run, and of the work done on each method inside them.
+ *
+ * Phases nest: a phase opened while another one is open on the same
+ * thread becomes its child, and is identified by the path of names from
+ * the outermost phase, e.g. "soot;analysis;extraction". Work done on
+ * other threads names its parent explicitly. CPU time and allocations are
+ * those of the thread that opened the phase.
+ *
+ * Results are written as JSON, one record per path, and as folded stacks
+ * with the self wall time of each path in microseconds, the input format
+ * of flamegraph.pl. Nothing is measured unless --profile is given.
+ * @author juniocezar
+ */
+public class PhaseProfiler {
+    private static PhaseProfiler instance = new PhaseProfiler();
+
+    private static final Phase NONE = new Phase(null, null);
+
+    private boolean enabled = false;
+    private ThreadMXBean threads;
+    private Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    // phases open on each thread, innermost last
+    private ThreadLocal<Deque<Phase>> open = new ThreadLocal<Deque<Phase>>() {
+        protected Deque<Phase> initialValue () {
+            return new ArrayDeque<Phase>();
+        }
+    };
+
+    /**
+     * Totals of a path.
+     */
+    private static class Stats {
+        long calls;
+        long wallNanos;
+        long cpuNanos;
+        long allocatedBytes;
+        long items;
+
+        synchronized void add (long wall, long cpu, long allocated, long items) {
+            calls++;
+            wallNanos += wall;
+            cpuNanos += cpu;
+            allocatedBytes += allocated;
+            this.items += items;
+        }
+    }
+
+    public static PhaseProfiler v () {
+        return instance;
+    }
+
+    /**
+     * Turns measuring on.
+     */
+    public void enable () {
+        enabled = true;
+        threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadCpuTimeSupported()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+            if (sun.isThreadAllocatedMemorySupported()) {
+                sun.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+    }
+
+    public boolean enabled () {
+        return enabled;
+    }
+
+    /**
+     * Forgets what was measured so far, e.g. between the artifacts of a batch.
+     * Phases still open are recorded when they close.
+     */
+    public void reset () {
+        stats.clear();
+    }
+
+    /**
+     * Opens a phase nested in the innermost phase open on this thread.
+     * @param name Name of the phase.
+     * @return Phase to be closed when the work is done.
+     */
+    public Phase begin (String name) {
+        if (!enabled) {
+            return NONE;
+        }
+        Deque<Phase> stack = open.get();
+        Phase parent = stack.peekLast();
+        Phase phase = new Phase(this, parent == null ? name : parent.path + ";" + name);
+        stack.addLast(phase);
+        return phase;
+    }
+
+    /**
+     * Opens a phase under an explicit parent, e.g. from a worker thread. It
+     * does not become the parent of other phases.
+     * @param parent Parent phase, null for none.
+     * @param name Name of the phase.
+     * @return Phase to be closed when the work is done.
+     */
+    public Phase begin (Phase parent, String name) {
+        if (!enabled || parent == null || parent == NONE) {
+            return NONE;
+        }
+        return new Phase(this, parent.path + ";" + name);
+    }
+
+    /**
+     * Opens a phase for one method under an explicit parent, its signature
+     * is only built when profiling is on.
+     * @param parent Parent phase, null for none.
+     * @param method Method the phase works on.
+     * @return Phase to be closed when the work is done.
+     */
+    public Phase begin (Phase parent, SootMethod method) {
+        if (!enabled || parent == null || parent == NONE) {
+            return NONE;
+        }
+        return new Phase(this, parent.path + ";" + method.getSignature());
+    }
+
+    /**
+     * A running phase.
+     */
+    public static class Phase implements AutoCloseable {
+        private final PhaseProfiler profiler;
+        private final String path;
+        private final long wall;
+        private final long cpu;
+        private final long allocated;
+        private long items;
+
+        private Phase (PhaseProfiler profiler, String path) {
+            this.profiler = profiler;
+            this.path = path;
+            this.wall = profiler == null ? 0 : System.nanoTime();
+            this.cpu = profiler == null ? 0 : profiler.cpuTime();
+            this.allocated = profiler == null ? 0 : profiler.allocatedBytes();
+        }
+
+        /**
+         * Adds to the number of items processed by the phase.
+         * @param n Number of items.
+         */
+        public void count (long n) {
+            items += n;
+        }
+
+        @Override
+        public void close () {
+            if (profiler == null) {
+                return;
+            }
+            Deque<Phase> stack = profiler.open.get();
+            if (stack.peekLast() == this) {
+                stack.removeLast();
+            }
+            Stats totals = profiler.stats.get(path);
+            if (totals == null) {
+                profiler.stats.putIfAbsent(path, new Stats());
+                totals = profiler.stats.get(path);
+            }
+            totals.add(System.nanoTime() - wall, profiler.cpuTime() - cpu,
+                profiler.allocatedBytes() - allocated, items);
+        }
+    }
+
+    private long cpuTime () {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private long allocatedBytes () {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            long bytes = ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+            return Math.max(bytes, 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Writes prefix.json and prefix.folded.
+     * @param prefix Path of the output files, without extension.
+     */
+    public void export (String prefix) {
+        if (!enabled) {
+            return;
+        }
+        List<String> paths = new ArrayList<String>(stats.keySet());
+        Collections.sort(paths);
+        // wall time of the children of each path
+        Map<String, Long> children = new HashMap<String, Long>();
+        for (String path : paths) {
+            int cut = path.lastIndexOf(';');
+            if (cut > 0) {
+                String parent = path.substring(0, cut);
+                Long sum = children.get(parent);
+                children.put(parent, (sum == null ? 0 : sum) + stats.get(path).wallNanos);
+            }
+        }
+
+        try (PrintStream json = new PrintStream(prefix + ".json", "UTF-8");
+                PrintStream folded = new PrintStream(prefix + ".folded", "UTF-8")) {
+            json.println("{\"phases\":[");
+            for (int i = 0; i < paths.size(); i++) {
+                String path = paths.get(i);
+                Stats s = stats.get(path);
+                json.print("  {\"path\":\"" + escape(path) + "\",\"calls\":" + s.calls +
+                    ",\"wall_ns\":" + s.wallNanos + ",\"cpu_ns\":" + s.cpuNanos +
+                    ",\"allocated_bytes\":" + s.allocatedBytes + ",\"items\":" + s.items + "}");
+                json.println(i + 1 < paths.size() ? "," : "");
+
+                // self time: what the children of the path do not account for,
+                // it is negative when the children ran on several threads
+                Long inChildren = children.get(path);
+                long self = s.wallNanos - (inChildren == null ? 0 : inChildren);
+                if (self > 0) {
+                    folded.println(path + " " + self / 1000);
+                }
+            }
+            json.println("]}");
+        } catch (FileNotFoundException | java.io.UnsupportedEncodingException e) {
+            Logger.error(PhaseProfiler.class, "Could not write profile " + prefix + ": " + e.getMessage());
+            return;
+        }
+        Logger.info(PhaseProfiler.class, "Profile written to " + prefix + ".json and " + prefix + ".folded");
+    }
+
+    private static String escape (String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,471 @@
+package sootparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import sootparser.utils.Logger;
+
+/**
+ * Propagates invocation counts bottom-up through the Call Graph.
+ *
+ * The graph is first collapsed into strongly connected components with an
+ * iterative Tarjan pass, which emits the components callees first. Each
+ * component is then solved exactly once. Recursion is capped at a single
+ * unrolling: inside a component, a call contributes the callee's count
+ * without its own recursive calls, so cycles never diverge and the result
+ * does not depend on the order methods are visited.
+ *
+ * With more than one thread, components are solved as a wavefront: each
+ * one only writes the features of its own members and only reads those of
+ * components that are already finished.
+ *
+ * Nodes are numbered densely and all counts live in long arrays; results
+ * are written to the propagated columns of the analyzer's MethodTable.
+ * A graph built elsewhere, e.g. merged from the shards of a sharded run,
+ * can also be solved directly, without any Soot method behind its nodes.
+ * @author juniocezar
+ */
+public class PropagationEngine {
+    private CallGraph cg;
+    private StaticAnalyzer analyzer;
+    private MethodTable table;
+
+    // dense node numbering: table id of each node, and node of each table id
+    private int[] tableId;
+    private int[] nodeOf;
+    private int size;
+    // outgoing edges of each node: target nodes and call-site loop depths
+    private List<int[]> targets;
+    private List<int[]> depths;
+    // local counts of each node
+    private long[] localStatic;
+    private long[] localDynamic;
+    // methods whose values are recomputed, null means all of them
+    private Set<SootMethod> frontier;
+
+    public PropagationEngine (CallGraph cg, StaticAnalyzer analyzer) {
+        this.cg = cg;
+        this.analyzer = analyzer;
+        this.table = analyzer.table();
+        tableId = new int[1024];
+        nodeOf = new int[0];
+        targets = new ArrayList<int[]>();
+        depths = new ArrayList<int[]>();
+    }
+
+    /**
+     * Constructor for a graph that is already built.
+     * @param targets Target nodes of the edges of each node.
+     * @param depths Call-site loop depth of the edges of each node.
+     * @param localStatic Local static count of each node.
+     * @param localDynamic Local dynamic count of each node.
+     */
+    PropagationEngine (List<int[]> targets, List<int[]> depths, long[] localStatic,
+            long[] localDynamic) {
+        this.targets = targets;
+        this.depths = depths;
+        this.localStatic = localStatic;
+        this.localDynamic = localDynamic;
+        this.size = targets.size();
+    }
+
+    /**
+     * Solves a graph given to the constructor.
+     * @return Propagated static and dynamic counts of each node.
+     */
+    long[][] solveGraph () {
+        Counts result = solveAll();
+        return new long[][] { result.staticCount, result.dynamicCount };
+    }
+
+    /**
+     * Propagates the features of every method reachable from the roots.
+     * @param roots Methods where the traversal starts.
+     * @return Number of methods whose propagated features were written.
+     */
+    public int propagate (Collection<SootMethod> roots) {
+        return propagate(roots, null);
+    }
+
+    /**
+     * Propagates the features of the frontier only. Methods outside of it are
+     * leaves that keep the value propagated by a previous run, so the
+     * frontier must be closed under callers.
+     * @param roots Methods where the traversal starts.
+     * @param frontier Methods to be recomputed, null means all of them.
+     * @return Number of methods whose propagated features were written.
+     */
+    public int propagate (Collection<SootMethod> roots, Set<SootMethod> frontier) {
+        this.frontier = frontier;
+        discover(roots);
+
+        // local counts are read up front, workers only touch the arrays
+        localStatic = new long[size];
+        localDynamic = new long[size];
+        for (int n = 0; n < size; n++) {
+            int id = tableId[n];
+            boolean recomputed = frontier == null || frontier.contains(table.method(id));
+            localStatic[n] = recomputed ? table.localStatic(id) : table.staticOf(id);
+            localDynamic[n] = recomputed ? table.localDynamic(id) : table.dynamicOf(id);
+        }
+
+        Counts result = solveAll();
+        int propagated = 0;
+        for (int n = 0; n < size; n++) {
+            if (targets.get(n).length > 0) {
+                table.setPropagated(tableId[n], result.staticCount[n], result.dynamicCount[n]);
+                propagated++;
+            }
+        }
+        return propagated;
+    }
+
+    /**
+     * Collapses the graph into components and solves all of them.
+     * @return Propagated counts of each node.
+     */
+    private Counts solveAll () {
+        List<int[]> sccs = stronglyConnectedComponents();
+        int[] sccOf = new int[size];
+        for (int c = 0; c < sccs.size(); c++) {
+            for (int n : sccs.get(c)) {
+                sccOf[n] = c;
+            }
+        }
+
+        Counts result = new Counts(size);
+        Counts base = new Counts(size);
+        int threads = AnalysisOptions.v().threads();
+        if (threads > 1) {
+            solveParallel(sccs, sccOf, result, base, threads);
+        } else {
+            for (int c = 0; c < sccs.size(); c++) {
+                solve(sccs.get(c), c, sccOf, result, base);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Static and dynamic counts of every node.
+     */
+    private static class Counts {
+        final long[] staticCount;
+        final long[] dynamicCount;
+
+        Counts (int size) {
+            staticCount = new long[size];
+            dynamicCount = new long[size];
+        }
+    }
+
+    /**
+     * Solves the components on a pool of worker threads. A component is
+     * scheduled as soon as every component it calls has been solved.
+     * @param sccs Components in reverse topological order.
+     * @param sccOf Component of each node.
+     * @param result Propagated counts of each node.
+     * @param base Scratch space, counts of each node without recursive calls.
+     * @param threads Number of worker threads.
+     */
+    private void solveParallel (final List<int[]> sccs, final int[] sccOf,
+            final Counts result, final Counts base, int threads) {
+        int count = sccs.size();
+        // condensed graph: callers of each component and number of callees left
+        final List<List<Integer>> callers = new ArrayList<List<Integer>>(count);
+        final AtomicInteger[] pending = new AtomicInteger[count];
+        for (int c = 0; c < count; c++) {
+            callers.add(new ArrayList<Integer>());
+        }
+        for (int c = 0; c < count; c++) {
+            Set<Integer> callees = new HashSet<Integer>();
+            for (int n : sccs.get(c)) {
+                for (int t : targets.get(n)) {
+                    if (sccOf[t] != c && callees.add(sccOf[t])) {
+                        callers.get(sccOf[t]).add(c);
+                    }
+                }
+            }
+            pending[c] = new AtomicInteger(callees.size());
+        }
+
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        class SolveTask extends RecursiveAction {
+            private final int c;
+
+            SolveTask (int c) {
+                this.c = c;
+            }
+
+            @Override
+            protected void compute () {
+                try {
+                    solve(sccs.get(c), c, sccOf, result, base);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                    for (int caller : callers.get(c)) {
+                        if (pending[caller].decrementAndGet() == 0) {
+                            new SolveTask(caller).fork();
+                        }
+                    }
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int c = 0; c < count; c++) {
+                if (pending[c].get() == 0) {
+                    pool.execute(new SolveTask(c));
+                }
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Assigns a node to every method reachable from the roots and collects
+     * its outgoing edges.
+     * @param roots Methods where the traversal starts.
+     */
+    private void discover (Collection<SootMethod> roots) {
+        int[] worklist = new int[16];
+        int head = 0;
+        int tail = 0;
+        for (SootMethod root : roots) {
+            int before = size;
+            int n = node(table.intern(root));
+            if (size > before) {
+                worklist = push(worklist, tail++, n);
+            }
+        }
+        int rootCount = size;
+
+        while (head < tail) {
+            int n = worklist[head++];
+            SootMethod sm = table.method(tableId[n]);
+            boolean root = n < rootCount;
+            if (sm.isPhantom() || (!root && LibraryFilter.v().isLibraryClass(sm.getDeclaringClass())) ||
+                    (frontier != null && !frontier.contains(sm))) {
+                continue;
+            }
+
+            if (AnalysisBudget.v().exhausted()) {
+                // methods left unexpanded only count their own invocations
+                AnalysisBudget.v().skip(sm, "propagation");
+                continue;
+            }
+            CallSummary summary;
+            try {
+                summary = analyzer.summary(tableId[n]);
+            } catch (RuntimeException e) {
+                // methods without a body are leaves of the graph
+                continue;
+            }
+
+            int[] t = new int[summary.targets.length];
+            for (int i = 0; i < t.length; i++) {
+                int before = size;
+                t[i] = node(summary.ids[i]);
+                if (size > before) {
+                    worklist = push(worklist, tail++, t[i]);
+                }
+            }
+            targets.set(n, t);
+            depths.set(n, summary.depths);
+        }
+    }
+
+    private static int[] push (int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, index * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * Returns the node of a method, creating it if needed. The method gets
+     * its local features, before any worker starts.
+     * @param id Table id of the method.
+     * @return Node of the method.
+     */
+    private int node (int id) {
+        analyzer.ensureLocal(id);
+        if (id >= nodeOf.length) {
+            int old = nodeOf.length;
+            nodeOf = Arrays.copyOf(nodeOf, Math.max(table.size(), id + 1) * 2);
+            Arrays.fill(nodeOf, old, nodeOf.length, -1);
+        }
+        if (nodeOf[id] == -1) {
+            if (size == tableId.length) {
+                tableId = Arrays.copyOf(tableId, size * 2);
+            }
+            tableId[size] = id;
+            nodeOf[id] = size;
+            targets.add(new int[0]);
+            depths.add(new int[0]);
+            size++;
+        }
+        return nodeOf[id];
+    }
+
+    /**
+     * Iterative version of Tarjan's algorithm.
+     * @return Components in reverse topological order, callees first.
+     */
+    private List<int[]> stronglyConnectedComponents () {
+        int n = size;
+        int[] index = new int[n];
+        int[] lowlink = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+
+        int[] stack = new int[n];
+        int sp = 0;
+        // explicit DFS stack: node and position of its next edge
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        int counter = 0;
+        List<int[]> sccs = new ArrayList<int[]>();
+
+        for (int start = 0; start < n; start++) {
+            if (index[start] != -1) {
+                continue;
+            }
+            int top = 0;
+            callNode[0] = start;
+            callEdge[0] = 0;
+            index[start] = lowlink[start] = counter++;
+            stack[sp++] = start;
+            onStack[start] = true;
+
+            while (top >= 0) {
+                int v = callNode[top];
+                int[] succs = targets.get(v);
+                if (callEdge[top] < succs.length) {
+                    int w = succs[callEdge[top]++];
+                    if (index[w] == -1) {
+                        index[w] = lowlink[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        top++;
+                        callNode[top] = w;
+                        callEdge[top] = 0;
+                    } else if (onStack[w]) {
+                        lowlink[v] = Math.min(lowlink[v], index[w]);
+                    }
+                    continue;
+                }
+
+                if (lowlink[v] == index[v]) {
+                    int end = sp;
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                    } while (w != v);
+                    sccs.add(Arrays.copyOfRange(stack, sp, end));
+                }
+                top--;
+                if (top >= 0) {
+                    int u = callNode[top];
+                    lowlink[u] = Math.min(lowlink[u], lowlink[v]);
+                }
+            }
+        }
+        return sccs;
+    }
+
+    /**
+     * Solves a single component, all components it calls are already solved.
+     * @param scc Members of the component.
+     * @param c Index of the component.
+     * @param sccOf Component of each node.
+     * @param result Propagated counts of each node.
+     * @param base Scratch space, counts of each node without recursive calls.
+     */
+    private void solve (int[] scc, int c, int[] sccOf, Counts result, Counts base) {
+        // first the member itself plus everything outside the component
+        for (int n : scc) {
+            result.staticCount[n] = localStatic[n];
+            result.dynamicCount[n] = localDynamic[n];
+            int[] t = targets.get(n);
+            int[] d = depths.get(n);
+            for (int i = 0; i < t.length; i++) {
+                if (sccOf[t[i]] != c) {
+                    merge(result, n, result, t[i], d[i]);
+                }
+            }
+        }
+
+        if (scc.length == 1 && !callsItself(scc[0])) {
+            return;
+        }
+
+        // then recursive calls, unrolled once over the values computed above
+        for (int n : scc) {
+            base.staticCount[n] = result.staticCount[n];
+            base.dynamicCount[n] = result.dynamicCount[n];
+        }
+        for (int n : scc) {
+            int[] t = targets.get(n);
+            int[] d = depths.get(n);
+            for (int i = 0; i < t.length; i++) {
+                if (sccOf[t[i]] == c) {
+                    merge(result, n, base, t[i], d[i]);
+                }
+            }
+        }
+    }
+
+    private boolean callsItself (int n) {
+        for (int t : targets.get(n)) {
+            if (t == n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the counts of a callee, weighted by its call site, to a caller.
+     */
+    private void merge (Counts into, int from, Counts callee, int to, int depth) {
+        CostModel model = CostModel.v();
+        into.staticCount[from] = model.add(into.staticCount[from], callee.staticCount[to]);
+        into.dynamicCount[from] = model.add(into.dynamicCount[from],
+            model.scale(callee.dynamicCount[to], depth));
+        if (table == null || !Logger.enabled(Logger.Level.TRACE)) {
+            return;
+        }
+        SootMethod sm = table.method(tableId[from]);
+        SootMethod tgt = table.method(tableId[to]);
+        if (!LibraryFilter.v().isLibraryClass(tgt.getDeclaringClass())) {
+            Logger.trace(PropagationEngine.class, "Propagated from: %s to %s [call depth = %d%s]",
+                tgt.getSubSignature(), sm.getSubSignature(), CallSummary.loopDepth(depth),
+                CallSummary.isAsync(depth) ? ", async" : "");
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package sootparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.options.Options;
+import sootparser.utils.Logger;
+
+/**
+ * Splits the analysis of a large program across local worker processes.
+ *
+ * The program is given to Soot with -process-dir. Its classes are listed
+ * without loading them, grouped by package, and the packages are spread
+ * over the shards so that each one gets about the same number of classes.
+ * Every worker lists the program the same way and only keeps its own
+ * classes: the packages of the other shards are excluded, so Soot reads
+ * their signatures but none of their bodies, and they stay phantom stubs
+ * that the worker neither extracts nor writes. Libraries on the class path
+ * keep their bodies, as in a single JVM run. Soot has no points-to
+ * information without the allocations in the other shards, so workers
+ * build a CHA Call Graph, with every method of the shard as an entry
+ * point, and a sharded run must be asked for with --cg=cha. Each worker
+ * extracts the local features of its classes and writes them to a shard
+ * file, together with the call summary of each method and of the non
+ * application methods they reach.
+ *
+ * The coordinator merges the shard files into a single graph, keyed by
+ * signature, and propagates the features over it without loading any
+ * class. A method is described by the shard owning it, the stub other
+ * shards see of it is dropped.
+ *
+ * A shard file starts with the magic number 0x53465348 and the number of
+ * methods. Each method holds its signature, whether it is an application
+ * method, its MethodTable flags, its local static and dynamic counts and
+ * its edges, as target signature and call-site loop depth.
+ * @author juniocezar
+ */
+public class ShardedAnalysis {
+    private static final int MAGIC = 0x53465348;
+
+    // options of a single JVM run that a sharded run cannot honor
+    private static final String[] UNSUPPORTED = {
+        "--cache=", "--changed=", "--cg-report=", "--cg-dot=", "--cfg-dot="
+    };
+
+    // classes of the other shards, stubs in a worker
+    private static Set<String> foreign = Collections.emptySet();
+
+    /**
+     * A method of the merged graph.
+     */
+    private static class Entry {
+        String signature;
+        boolean application;
+        byte flags;
+        long staticCount;
+        long dynamicCount;
+        List<String> targets = new ArrayList<String>();
+        List<Integer> depths = new ArrayList<Integer>();
+    }
+
+    /**
+     * @return Directories and jars given to Soot with -process-dir.
+     */
+    static List<String> inputs (String[] sootArgs) {
+        List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i + 1 < sootArgs.length; i++) {
+            if (sootArgs[i].equals("-process-dir") || sootArgs[i].equals("-pd")) {
+                inputs.add(sootArgs[++i]);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Lists the classes of the program, reading directory and jar entries
+     * only.
+     * @param inputs Directories and jars of the program.
+     * @return Class names.
+     */
+    static List<String> programClasses (List<String> inputs) {
+        List<String> classes = new ArrayList<String>();
+        for (String input : inputs) {
+            File file = new File(input);
+            try {
+                if (file.isDirectory()) {
+                    final Path root = file.toPath();
+                    try (Stream<Path> paths = Files.walk(root)) {
+                        paths.forEach(path -> {
+                            String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                            addClass(name, classes);
+                        });
+                    }
+                } else {
+                    try (JarFile jar = new JarFile(file)) {
+                        Enumeration<JarEntry> entries = jar.entries();
+                        while (entries.hasMoreElements()) {
+                            addClass(entries.nextElement().getName(), classes);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot list the classes of " + input, e);
+            }
+        }
+        return classes;
+    }
+
+    private static void addClass (String entry, List<String> classes) {
+        if (entry.endsWith(".class") && !entry.startsWith("META-INF/") && !entry.endsWith("module-info.class")) {
+            classes.add(entry.substring(0, entry.length() - ".class".length()).replace('/', '.'));
+        }
+    }
+
+    /**
+     * Spreads the packages of the program over the shards, largest package
+     * first, each one to the shard with the fewest classes so far. Workers
+     * and coordinator compute the same partition from the same input.
+     * @param classes Classes of the program.
+     * @param count Number of shards.
+     * @return Classes of each shard.
+     */
+    static List<Set<String>> partition (List<String> classes, int count) {
+        Map<String, List<String>> packages = new TreeMap<String, List<String>>();
+        for (String name : classes) {
+            String pkg = name.lastIndexOf('.') < 0 ? "" : name.substring(0, name.lastIndexOf('.'));
+            List<String> members = packages.get(pkg);
+            if (members == null) {
+                members = new ArrayList<String>();
+                packages.put(pkg, members);
+            }
+            members.add(name);
+        }
+        List<List<String>> bySize = new ArrayList<List<String>>(packages.values());
+        // stable sort, equal sizes keep the order of the package names
+        Collections.sort(bySize, (a, b) -> Integer.compare(b.size(), a.size()));
+
+        List<Set<String>> shards = new ArrayList<Set<String>>();
+        for (int s = 0; s < count; s++) {
+            shards.add(new HashSet<String>());
+        }
+        for (List<String> members : bySize) {
+            Set<String> smallest = shards.get(0);
+            for (Set<String> shard : shards) {
+                if (shard.size() < smallest.size()) {
+                    smallest = shard;
+                }
+            }
+            smallest.addAll(members);
+        }
+        return shards;
+    }
+
+    /**
+     * Worker side: restricts Soot to the classes of one shard, before it
+     * loads anything. The packages of the other shards are excluded, and
+     * the classes of the shard included back by name, as an excluded
+     * package also covers its subpackages, so they are the only
+     * application classes with bodies.
+     * @param sootArgs Soot command line of the worker.
+     * @param index Index of the shard.
+     * @param count Number of shards.
+     */
+    static void restrictScene (String[] sootArgs, int index, int count) {
+        List<String> classes = programClasses(inputs(sootArgs));
+        Set<String> shard = partition(classes, count).get(index);
+
+        // packages are never split between shards
+        Set<String> excluded = new HashSet<String>();
+        foreign = new HashSet<String>();
+        for (String name : classes) {
+            if (shard.contains(name)) {
+                continue;
+            }
+            foreign.add(name);
+            int dot = name.lastIndexOf('.');
+            // classes of the default package have no package to exclude
+            excluded.add(dot >= 0 ? name.substring(0, dot) + ".*" : name);
+        }
+        Options.v().set_exclude(new ArrayList<String>(excluded));
+        Options.v().set_include(new ArrayList<String>(shard));
+        Options.v().set_no_bodies_for_excluded(true);
+        Options.v().setPhaseOption("cg.spark", "off");
+        Options.v().setPhaseOption("cg.cha", "on");
+        // the callers of most methods are in other shards
+        Options.v().setPhaseOption("cg", "all-reachable:true");
+        Logger.info(ShardedAnalysis.class, "Shard " + index + "/" + count + ": " + shard.size() + " of " +
+            classes.size() + " classes");
+    }
+
+    /**
+     * Worker side: extracts the features of the classes of its shard, the
+     * only application classes it loaded, and writes them, with their call
+     * summaries, to a shard file.
+     * @param analyzer Analyzer of the worker, nothing extracted yet.
+     * @param path Shard file.
+     */
+    static void runShard (StaticAnalyzer analyzer, String path) {
+        analyzer.extractFeatures(null, StaticAnalyzer.applicationClasses());
+
+        // the methods of the shard, and the non application methods they
+        // reach, which the merged graph would not know otherwise
+        MethodTable table = analyzer.table();
+        Deque<Integer> worklist = new ArrayDeque<Integer>();
+        Set<Integer> visited = new HashSet<Integer>();
+        for (SootClass sclass : Scene.v().getApplicationClasses()) {
+            for (SootMethod sm : sclass.getMethods()) {
+                int id = analyzer.localId(sm);
+                if (visited.add(id)) {
+                    worklist.add(id);
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            List<Integer> written = new ArrayList<Integer>();
+            List<CallSummary> summaries = new ArrayList<CallSummary>();
+            while (!worklist.isEmpty()) {
+                int id = worklist.poll();
+                SootMethod sm = table.method(id);
+                boolean application = sm.getDeclaringClass().isApplicationClass();
+                CallSummary summary = CallSummary.EMPTY;
+                // same leaves as PropagationEngine.discover
+                if (!sm.isPhantom() && (application ||
+                        !LibraryFilter.v().isLibraryClass(sm.getDeclaringClass()))) {
+                    try {
+                        summary = analyzer.summary(id);
+                    } catch (RuntimeException e) {
+                        // methods without a body are leaves of the graph
+                    }
+                }
+                for (int target : summary.resolve(table)) {
+                    SootClass owner = table.method(target).getDeclaringClass();
+                    if (owner.isPhantom() || foreign.contains(owner.getName())) {
+                        // the shard owning it writes it, only the edge is kept
+                        continue;
+                    }
+                    analyzer.ensureLocal(target);
+                    if (!owner.isApplicationClass() && visited.add(target)) {
+                        worklist.add(target);
+                    }
+                }
+                written.add(id);
+                summaries.add(summary);
+            }
+
+            out.writeInt(written.size());
+            for (int i = 0; i < written.size(); i++) {
+                int id = written.get(i);
+                SootMethod sm = table.method(id);
+                CallSummary summary = summaries.get(i);
+                out.writeUTF(sm.getSignature());
+                out.writeBoolean(sm.getDeclaringClass().isApplicationClass());
+                out.writeByte(table.has(id, MethodTable.LOCAL) ? MethodTable.LOCAL : MethodTable.LIBRARY);
+                out.writeLong(table.localStatic(id));
+                out.writeLong(table.localDynamic(id));
+                out.writeInt(summary.targets.length);
+                for (int e = 0; e < summary.targets.length; e++) {
+                    out.writeUTF(summary.targets[e].getSignature());
+                    out.writeInt(summary.depths[e]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write shard " + path, e);
+        }
+    }
+
+    /**
+     * Coordinator side: runs one worker per shard, merges their results and
+     * propagates the features over the merged graph.
+     * @param args Full command line, forwarded to the workers.
+     * @param sootArgs Soot part of the command line.
+     * @param count Number of shards.
+     * @throws IllegalArgumentException If the command line cannot be sharded.
+     * @throws RuntimeException If a worker failed, its log is kept.
+     */
+    public static void run (String[] args, String[] sootArgs, int count) {
+        for (String arg : args) {
+            for (String option : UNSUPPORTED) {
+                if (arg.startsWith(option)) {
+                    throw new IllegalArgumentException(option.substring(0, option.length() - 1) +
+                        " cannot be combined with --shards");
+                }
+            }
+        }
+        // workers have no points-to information, see restrictScene; the
+        // default Spark Call Graph is not silently downgraded either
+        if (AnalysisOptions.v().callGraph() != AnalysisOptions.CallGraphAlgorithm.CHA) {
+            throw new IllegalArgumentException("Shard workers build a CHA Call Graph, --shards needs --cg=cha, got " +
+                AnalysisOptions.v().callGraph().name().toLowerCase());
+        }
+        List<String> inputs = inputs(sootArgs);
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("--shards needs the program given with -process-dir");
+        }
+        List<String> classes = programClasses(inputs);
+        if (classes.isEmpty()) {
+            throw new IllegalArgumentException("No classes found in " + inputs);
+        }
+
+        File dir;
+        try {
+            dir = Files.createTempDirectory("shards").toFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create shard directory", e);
+        }
+        Logger.info(ShardedAnalysis.class, "Running " + count + " shard workers over " + classes.size() +
+            " classes in " + dir);
+
+        List<Process> workers = new ArrayList<Process>();
+        List<File> files = new ArrayList<File>();
+        int failed = 0;
+        try (PhaseProfiler.Phase shards = PhaseProfiler.v().begin("shards")) {
+            for (int i = 0; i < count; i++) {
+                File file = new File(dir, "shard-" + i + ".bin");
+                files.add(file);
+                workers.add(startWorker(args, i, count, file));
+            }
+            for (int i = 0; i < count; i++) {
+                if (workers.get(i).waitFor() != 0 || !files.get(i).isFile()) {
+                    Logger.error(ShardedAnalysis.class, "Shard " + i + " failed, see " + files.get(i) + ".log");
+                    failed++;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not start shard worker", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the shard workers", e);
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+        }
+        if (failed > 0) {
+            // no partial Feature Map, the logs stay in dir
+            throw new RuntimeException(failed + " of " + count + " shards failed, logs kept in " + dir);
+        }
+
+        Map<String, Integer> nodes = new HashMap<String, Integer>();
+        List<Entry> entries = new ArrayList<Entry>();
+        try (PhaseProfiler.Phase merge = PhaseProfiler.v().begin("merge")) {
+            Logger.info(ShardedAnalysis.class, "Merging " + count + " shards");
+            for (File file : files) {
+                readShard(file, nodes, entries);
+            }
+            merge.count(entries.size());
+        }
+        try (PhaseProfiler.Phase propagation = PhaseProfiler.v().begin("propagation")) {
+            propagate(entries, nodes);
+        }
+        if (AnalysisOptions.v().profileOutput() != null) {
+            PhaseProfiler.v().export(AnalysisOptions.v().profileOutput());
+        }
+        for (File file : files) {
+            file.delete();
+            new File(file.getPath() + ".log").delete();
+        }
+        dir.delete();
+    }
+
+    private static Process startWorker (String[] args, int index, int count, File file)
+            throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SootDriver.class.getName());
+        for (String arg : args) {
+            if (arg.startsWith("--profile=")) {
+                // the coordinator writes the profile itself under the prefix
+                command.add(arg + "-" + index);
+            } else if (!arg.startsWith("--shards=") && !arg.startsWith("--out=")) {
+                // the coordinator alone writes results
+                command.add(arg);
+            }
+        }
+        command.add("--shard=" + index + "/" + count);
+        command.add("--shard-out=" + file.getPath());
+        command.add("-f");
+        command.add("n");
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(file.getPath() + ".log"))
+            .start();
+    }
+
+    /**
+     * Reads a shard file into the merged graph. Methods written by several
+     * shards are kept once, as written by the shard they belong to.
+     */
+    private static void readShard (File file, Map<String, Integer> nodes, List<Entry> entries) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a shard file");
+            }
+            int methods = in.readInt();
+            for (int m = 0; m < methods; m++) {
+                Entry entry = new Entry();
+                entry.signature = in.readUTF();
+                entry.application = in.readBoolean();
+                entry.flags = in.readByte();
+                entry.staticCount = in.readLong();
+                entry.dynamicCount = in.readLong();
+                int edges = in.readInt();
+                for (int e = 0; e < edges; e++) {
+                    entry.targets.add(in.readUTF());
+                    entry.depths.add(in.readInt());
+                }
+                Integer node = nodes.get(entry.signature);
+                if (node == null) {
+                    nodes.put(entry.signature, entries.size());
+                    entries.add(entry);
+                } else if (entry.application && !entries.get(node).application) {
+                    // other shards only saw a stub of it
+                    entries.set(node, entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read shard " + file, e);
+        }
+    }
+
+    /**
+     * Propagates the features over the merged graph and writes them.
+     * Targets no shard wrote down are leaves without invocations.
+     */
+    private static void propagate (List<Entry> entries, Map<String, Integer> nodes) {
+        List<int[]> targets = new ArrayList<int[]>();
+        List<int[]> depths = new ArrayList<int[]>();
+        int size = entries.size();
+        for (int n = 0; n < size; n++) {
+            Entry entry = entries.get(n);
+            int[] t = new int[entry.targets.size()];
+            int[] d = new int[t.length];
+            for (int e = 0; e < t.length; e++) {
+                Integer target = nodes.get(entry.targets.get(e));
+                if (target == null) {
+                    target = entries.size();
+                    Entry leaf = new Entry();
+                    leaf.signature = entry.targets.get(e);
+                    leaf.flags = MethodTable.LIBRARY;
+                    nodes.put(leaf.signature, target);
+                    entries.add(leaf);
+                }
+                t[e] = target;
+                d[e] = entry.depths.get(e);
+            }
+            targets.add(t);
+            depths.add(d);
+        }
+        for (int n = size; n < entries.size(); n++) {
+            targets.add(new int[0]);
+            depths.add(new int[0]);
+        }
+
+        long[] localStatic = new long[entries.size()];
+        long[] localDynamic = new long[entries.size()];
+        for (int n = 0; n < entries.size(); n++) {
+            localStatic[n] = entries.get(n).staticCount;
+            localDynamic[n] = entries.get(n).dynamicCount;
+        }
+        Logger.info(ShardedAnalysis.class, "Propagating invocations through " + entries.size() + " merged methods");
+        long[][] result = new PropagationEngine(targets, depths, localStatic, localDynamic).solveGraph();
+
+        String path = AnalysisOptions.v().outputFile() != null ? AnalysisOptions.v().outputFile() : "-";
+        Logger.info(ShardedAnalysis.class, "Writing Feature Map to " + path);
+        try (FeatureWriter writer = FeatureWriter.open(path, AnalysisOptions.v().outputFormat())) {
+            // application methods first, as in StaticAnalyzer.writeFeaturesMap
+            for (int pass = 0; pass < 2; pass++) {
+                for (int n = 0; n < entries.size(); n++) {
+                    Entry entry = entries.get(n);
+                    boolean propagated = targets.get(n).length > 0;
+                    boolean write = pass == 0 ?
+                        entry.application && (propagated || entry.flags == MethodTable.LOCAL) :
+                        !entry.application && propagated;
+                    if (write) {
+                        writer.write(entry.signature, entry.staticCount, entry.dynamicCount,
+                            propagated ? result[0][n] : entry.staticCount,
+                            propagated ? result[1][n] : entry.dynamicCount);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.error(ShardedAnalysis.class, "Could not write features to " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package sootparser;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -23,158 +25,217 @@ import soot.jimple.internal.JDynamicInvokeExpr;
 public class SootDriver {
 
     public static void main (String[] args) {
-        Logger.log("Instrummenting Java/Scala file");
+        Logger.info(SootDriver.class, "Instrummenting Java/Scala file");
+        // our own options are consumed here, the rest goes to soot
+        final String[] sootArgs = extractInput(args);
+        if (AnalysisOptions.v().batchManifest() != null) {
+            BatchDriver.run(args, sootArgs);
+            return;
+        }
+        final AnalysisOptions options = AnalysisOptions.v();
+        if (options.shardIndex() >= 0) {
+            // the analyzer writes the shard file, results come from the coordinator
+            runAnalysis(sootArgs, new AnalysisListener() {
+                public void analyzed (StaticAnalyzer analyzer, CallGraph cg) {
+                }
+            });
+            return;
+        }
+        if (options.shards() > 0) {
+            ShardedAnalysis.run(args, sootArgs, options.shards());
+            return;
+        }
+        if (AnalysisOptions.v().callGraphReport() != null) {
+            CallGraphReport.run(sootArgs, AnalysisOptions.v().callGraphReport());
+            return;
+        }
+        runAnalysis(sootArgs, new AnalysisListener() {
+            public void analyzed (StaticAnalyzer analyzer, CallGraph cg) {
+                analyzer.printFeaturesMap();
+                if (options.callGraphDot() != null) {
+                    try (PhaseProfiler.Phase export = PhaseProfiler.v().begin("call graph export")) {
+                        CallGraphExport.export(analyzer, options.callGraphDot(),
+                            options.callGraphDotTop(), options.callGraphDotShard());
+                    }
+                }
+                if (options.cfgDot() != null) {
+                    try (PhaseProfiler.Phase export = PhaseProfiler.v().begin("cfg export")) {
+                        CfgExport.export(options.cfgDot(), options.threads(), options.cfgDotWriters());
+                    }
+                }
+                //analyzer.dumpIR();
+            }
+        });
+    }
+
+    /**
+     * Receives the analyzer once the features of the input were computed.
+     */
+    interface AnalysisListener {
+        void analyzed (StaticAnalyzer analyzer, CallGraph cg);
+    }
+
+    /**
+     * Runs Soot with our analysis added to its pipeline.
+     * @param sootArgs Soot command line.
+     * @param listener Called inside the pipeline, after the analysis.
+     */
+    static void runAnalysis (String[] sootArgs, final AnalysisListener listener) {
+        // the global budget covers the whole run, Soot's own phases included
+        AnalysisBudget.v().begin();
         // specifies soot options for handling JAR/class file
-        setSootOptions(extractInput(args));
+        setSootOptions(sootArgs);
         // adding our analysis to soot's pipeline
         PackManager.v().getPack("wjtp").add(
             new Transform("wjtp.phases", new SceneTransformer() {
                 protected void internalTransform(String phaseName,
                   Map options) {
 
-                    Logger.log("Building Call Graph");
-                    // getting call graph from soot scene
-                    CallGraph cg = Scene.v().getCallGraph();
-                    Set<SootClass> ths = findUnThreads();
-                    extendCallGraph(cg, ths);
-
-                    // initiating our analysis and instrumentation
-                    StaticAnalyzer analyzer = new StaticAnalyzer(cg);
-                    // running analysis (feature extraction)
-                    analyzer.run();
-                    analyzer.printFeaturesMap();
-                    //analyzer.dumpIR();
+                    try (PhaseProfiler.Phase analysis = PhaseProfiler.v().begin("analysis")) {
+                        Logger.info(SootDriver.class, "Building Call Graph");
+                        // getting call graph from soot scene
+                        CallGraph cg = Scene.v().getCallGraph();
+                        try (PhaseProfiler.Phase extension = PhaseProfiler.v().begin("extend call graph")) {
+                            int edges = cg.size();
+                            extendCallGraph(cg);
+                            extension.count(cg.size() - edges);
+                        }
+
+                        // initiating our analysis and instrumentation
+                        StaticAnalyzer analyzer = new StaticAnalyzer(cg);
+                        // running analysis (feature extraction)
+                        analyzer.run();
+                        AnalysisBudget.v().report(AnalysisOptions.v().outputFile());
+                        listener.analyzed(analyzer, cg);
+                    }
                 }
             }));
 
-            Logger.log("Running Soot ...");
+            Logger.info(SootDriver.class, "Running Soot ...");
             Scene.v().addBasicClass("java.io.PrintStream", SootClass.BODIES);
-            soot.Main.main(args);
+            // loading classes and building the Call Graph are accounted to soot
+            try (PhaseProfiler.Phase run = PhaseProfiler.v().begin("soot")) {
+                soot.Main.main(sootArgs);
+            }
+            if (AnalysisOptions.v().profileOutput() != null) {
+                PhaseProfiler.v().export(AnalysisOptions.v().profileOutput());
+            }
     }
 
     /**
-     * Checks if input class is member of a library package.
-     * @param sclass Input class.
-     * @return true if class is member of a library package, false otherwise.
+     * Extends the Call Graph starting from every application method. Methods
+     * are processed through a worklist, so each body is scanned exactly once,
+     * no matter how many paths reach it.
+     * @param cg Original Call Graph
      */
-    private static boolean isLibraryClass (SootClass sclass) {
-        String pack = sclass.getPackageName();
-        String[] libs = {"java.", "jdk.", "soot.","sun.", "oracle.", "scala."};
-
-        for (String lib : libs) {
-            if (pack.startsWith(lib)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
+    static void extendCallGraph (CallGraph cg) {
+        Set<SootMethod> visited = new HashSet<SootMethod>();
+        Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
 
-    private static Set<SootClass> findUnThreads () {
-        FastHierarchy h = Scene.v().getOrMakeFastHierarchy();
-        Set<SootClass> scs = new HashSet<SootClass>();
         for (SootClass sclass : Scene.v().getApplicationClasses()) {
-            if (!isLibraryClass(sclass)) {
-                if (sclass.implementsInterface("java.lang.Runnable") ||
-                        h.isSubclass(sclass, Scene.v().getSootClass("java.lang.Thread"))) {
-                    scs.add(sclass);
+            if (!LibraryFilter.v().isLibraryClass(sclass)) {
+                for (SootMethod sm : sclass.getMethods()) {
+                    if (visited.add(sm)) {
+                        worklist.add(sm);
+                    }
                 }
             }
         }
-        return scs;
-    }
 
-    private static void extendCallGraph (CallGraph cg, Set<SootClass> set) {
-        for (SootClass sclass : Scene.v().getApplicationClasses()) {
-            if (!isLibraryClass(sclass)) {
-                for (SootMethod sm : sclass.getMethods()) {
-                    simpleCallGraphExtension(cg, sm, set);
+        while (!worklist.isEmpty()) {
+            if (AnalysisBudget.v().exhausted()) {
+                // the methods left keep the edges Soot gave them
+                for (SootMethod sm : worklist) {
+                    AnalysisBudget.v().skip(sm, "call graph extension");
+                }
+                break;
+            }
+            SootMethod sm = worklist.poll();
+            for (SootMethod next : simpleCallGraphExtension(cg, sm)) {
+                if (!LibraryFilter.v().isLibraryClass(next.getDeclaringClass()) &&
+                        visited.add(next)) {
+                    worklist.add(next);
                 }
             }
         }
     }
 
     /**
-     * Extends the Call Graph with missing edges
+     * Extends the Call Graph with missing edges going out of a single method.
      * @param cg Original Call Graph
      * @param entryPoint Method to be analyzed
+     * @return Targets of the edges added to the Call Graph.
      */
-    private static void simpleCallGraphExtension (CallGraph cg, SootMethod entryPoint, Set<SootClass> set) {
+    private static List<SootMethod> simpleCallGraphExtension (CallGraph cg, SootMethod entryPoint) {
         if (entryPoint == null)
             entryPoint = Scene.v().getMainMethod();
 
+        List<SootMethod> nexts = new ArrayList<SootMethod>();
         Chain<Unit> units;
         try {
-             units = entryPoint.retrieveActiveBody().getUnits();        
-
-        List<SootMethod> nexts = new ArrayList<SootMethod>();
+            units = entryPoint.retrieveActiveBody().getUnits();
+        } catch (RuntimeException e) {
+            // phantom, abstract or native methods have no body to scan
+            return nexts;
+        }
 
+        AnalysisBudget.Meter meter = AnalysisBudget.v().meter(entryPoint, "call graph extension");
         for (Unit u : units) {
+            if (!meter.tick()) {
+                break;
+            }
             if (u instanceof Stmt) {
                 Stmt s = (Stmt) u;
                 if (s.containsInvokeExpr()) {
-                    InvokeExpr in = s.getInvokeExpr();
-                    //System.out.println("Hey > " + in.getMethod().getSignature());
-                    SootClass sclass = entryPoint.getDeclaringClass();
-                    //
-                    // Special Handler for Executor submit
-                    if (in.getMethod().getSignature().equals(
-                    "<java.util.concurrent.ExecutorService: java.util.concurrent.Future submit(java.lang.Runnable)>"))
-                    {
-                        Value arg0 = in.getArg(0);
-                        Type t = arg0.getType();
-                        if (t instanceof RefType) {
-                            RefType rt = (RefType) t;
-                            SootClass sc = rt.getSootClass();
-                            SootMethod sm = sc.getMethod("void run()");
-                            Edge e = new Edge(entryPoint, s, sm);
-                            cg.addEdge(e);
-                            nexts.add(sm);
-                        }
-                    } else if (in.getMethod().getSignature().equals(
-                            "<java.lang.Thread: void start()>")) {
-                        for (SootClass tclass : set) {
-                            SootMethod sm = tclass.getMethod("void run()");
-                            if (!sm.equals(entryPoint)){
-                                Edge e = new Edge(entryPoint, s, sm);
-                                cg.addEdge(e);
-                                nexts.add(sm);
-                                System.out.println("added edge from " + entryPoint.getSignature() + " to "
-                                   + sm.getSignature());
-                            }
-                        }
-
-                    } else {
-                        Iterator it = cg.edgesOutOf(u);
-                        //
-                        // avoid adding extra edges to units with outgoing edges
-                        if (!it.hasNext()) {
-                            try {
-                                Edge e = new Edge(entryPoint, s, in.getMethod());
-                                cg.addEdge(e);
-                                nexts.add(in.getMethod());
-                            } catch (RuntimeException e) {
-                                System.out.println(" Ignoring edge for  :: " + s.getInvokeExpr().getClass().toString());
-                            }
+                    try {
+                        extendCallSite(cg, entryPoint, s, nexts);
+                    } catch (RuntimeException e) {
+                        if (Logger.enabled(Logger.Level.DEBUG)) {
+                            Logger.debug(SootDriver.class, "Ignoring call site :: %s in %s", s.toString(),
+                                entryPoint.getSignature());
                         }
                     }
                 }
             }
         }
 
-        for (SootMethod s : nexts) {
-            if (!s.getDeclaringClass().getPackageName().startsWith("java."))
-                simpleCallGraphExtension(cg, s, set);
-            
-        }
+        return nexts;
+    }
 
-        } catch (Exception e) {
+    /**
+     * Adds the missing edges of a single call site.
+     * @param cg Original Call Graph
+     * @param entryPoint Method containing the call site
+     * @param s Statement holding the invoke expression
+     * @param nexts Output list, receives the targets of the new edges
+     */
+    private static void extendCallSite (CallGraph cg, SootMethod entryPoint, Stmt s,
+            List<SootMethod> nexts) {
+        InvokeExpr in = s.getInvokeExpr();
+        //
+        // Thread.start, executors, fork/join, CompletableFuture and streams
+        // run tasks through library code, their bodies are linked directly
+        if (AsyncDispatchModel.v().extend(cg, entryPoint, s, nexts)) {
             return;
         }
+        Iterator it = cg.edgesOutOf(s);
+        //
+        // avoid adding extra edges to units with outgoing edges
+        if (!it.hasNext()) {
+            try {
+                Edge e = new Edge(entryPoint, s, in.getMethod());
+                cg.addEdge(e);
+                nexts.add(in.getMethod());
+            } catch (RuntimeException e) {
+                if (Logger.enabled(Logger.Level.DEBUG)) {
+                    Logger.debug(SootDriver.class, "Ignoring edge for :: %s", s.getInvokeExpr().getClass().getName());
+                }
+            }
+        }
     }
 
     private static String[] extractInput (String[] args) {
-        return args;
+        return AnalysisOptions.v().parse(args);
     }
 
     /**
@@ -195,7 +256,26 @@ public class SootDriver {
         Options.v().set_no_bodies_for_excluded(true);
         //Options.v().set_process_dir(Collections.singletonList(input));
         //Options.v().set_java_version(6);
-        Options.v().setPhaseOption("cg.spark", "on");
-        Options.v().set_no_writeout_body_releasing(true);
+        switch (AnalysisOptions.v().callGraph()) {
+            case CHA:
+                Options.v().setPhaseOption("cg.spark", "off");
+                Options.v().setPhaseOption("cg.cha", "on");
+                break;
+            case RTA:
+                // spark with a single allocation site per type, no points-to sets
+                Options.v().setPhaseOption("cg.spark", "on");
+                Options.v().setPhaseOption("cg.spark", "rta:true");
+                Options.v().setPhaseOption("cg.spark", "on-fly-cg:false");
+                break;
+            default:
+                Options.v().setPhaseOption("cg.spark", "on");
+                break;
+        }
+        if (AnalysisOptions.v().shardIndex() >= 0) {
+            // a shard worker only loads the bodies of its own classes
+            ShardedAnalysis.restrictScene(input, AnalysisOptions.v().shardIndex(), AnalysisOptions.v().shards());
+        }
+        // bodies are kept until exit unless we run with a memory cap
+        Options.v().set_no_writeout_body_releasing(!AnalysisOptions.v().lowMemory());
     }
 }
\ No newline at end of file
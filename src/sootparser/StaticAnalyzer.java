@@ -4,14 +4,21 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 import soot.Body;
 import soot.DoubleType;
 import soot.FastHierarchy;
@@ -44,174 +51,290 @@ import sootparser.utils.ConsoleColors;
 import sootparser.utils.Logger;
 
 /**
- * Parses CallGraph, extracts method invocations and build
- * a map <SootMethod, Features>.
+ * Parses CallGraph, extracts method invocations and stores the features
+ * of each method in a MethodTable.
  * @author juniocezar
  */
 public class StaticAnalyzer {
     private CallGraph cg;
-    private Map<SootMethod, Features> featuresLibMap;
-    private Map<SootMethod, Features> featuresMap;
-    private Map<SootMethod, Features> propagatedFeaturesMap;
+    // local (application and library) and propagated features of each method
+    private MethodTable table;
+    // phase the work on each method is profiled under
+    private PhaseProfiler.Phase phase;
     private boolean debug = true;
 
     public StaticAnalyzer (CallGraph cg) {
         this.cg = cg;
-        featuresMap = new HashMap<SootMethod, Features> ();
-        featuresLibMap = new HashMap<SootMethod, Features> ();
-        propagatedFeaturesMap = new HashMap<SootMethod, Features> ();
+        table = new MethodTable();
     }
 
     public void run () {
+        AnalysisOptions options = AnalysisOptions.v();
+        if (options.shardIndex() >= 0) {
+            ShardedAnalysis.runShard(this, options.shardOutput());
+            return;
+        }
+
+        FeatureCache cache = openCache();
+        Set<String> changed = AnalysisOptions.v().changedClasses();
+        if (cache != null && changed != null) {
+            try (PhaseProfiler.Phase incremental = PhaseProfiler.v().begin("incremental")) {
+                phase = incremental;
+                runIncremental(cache, changed);
+            }
+            return;
+        }
+
         //
         // 1 - Iterate over all application classes / methods calculate
         // how many methods they call
-        generalFeatureExtraction();
+        try (PhaseProfiler.Phase extraction = PhaseProfiler.v().begin("extraction")) {
+            phase = extraction;
+            generalFeatureExtraction(cache);
+            extraction.count(table.size());
+        }
 
         //
         // 2 - Traverse the Call Graph and propagate call stack counter
-        propagateFeatures();
+        try (PhaseProfiler.Phase propagation = PhaseProfiler.v().begin("propagation")) {
+            phase = propagation;
+            propagation.count(propagateFeatures());
+        }
+
+        if (cache != null) {
+            try (PhaseProfiler.Phase caching = PhaseProfiler.v().begin("cache")) {
+                for (SootClass sclass : applicationClasses()) {
+                    cache.store(sclass, table);
+                }
+                cache.save();
+            }
+        }
+    }
+
+    /**
+     * Restores every class from the cache but the changed ones, and then
+     * re-analyzes only the changed classes and their callers.
+     * @param cache Feature cache written by a previous run.
+     * @param changed Names of the modified classes.
+     */
+    private void runIncremental (FeatureCache cache, Set<String> changed) {
+        List<SootClass> modified = new ArrayList<SootClass>();
+        for (SootClass sclass : applicationClasses()) {
+            if (changed.contains(sclass.getName()) || !cache.contains(sclass)) {
+                cache.invalidate(sclass);
+                modified.add(sclass);
+            } else {
+                cache.restore(sclass, table, true);
+            }
+        }
+
+        Set<SootMethod> frontier = runIncremental(modified);
+
+        Set<SootClass> touched = new LinkedHashSet<SootClass>(modified);
+        for (SootMethod sm : frontier) {
+            if (!LibraryFilter.v().isLibraryClass(sm.getDeclaringClass())) {
+                touched.add(sm.getDeclaringClass());
+            }
+        }
+        for (SootClass sclass : touched) {
+            cache.store(sclass, table);
+        }
+        cache.save();
     }
 
     /**
-     * Checks if input class is member of a library package.
-     * @param sclass Input class.
-     * @return true if class is member of a library package, false otherwise.
+     * Re-analyzes a set of modified classes. Their methods are extracted
+     * again, and the propagated features of those methods and of all their
+     * transitive callers are recomputed. Everything else keeps its value.
+     * @param modified Classes whose methods changed.
+     * @return Methods whose propagated features were recomputed.
      */
-    private static boolean isLibraryClass (SootClass sclass) {
-        String pack = sclass.getPackageName();
-        String[] libs = {"java.", "jdk.", "soot.","sun.", "oracle.", "scala."};
+    public Set<SootMethod> runIncremental (Collection<SootClass> modified) {
+        Logger.info(StaticAnalyzer.class, "Re-analyzing " + modified.size() + " modified classes");
+        Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
+        Set<SootMethod> frontier = new LinkedHashSet<SootMethod>();
+        for (SootClass sclass : modified) {
+            for (SootMethod method : sclass.getMethods()) {
+                LoopDepthIndex.v().evict(method);
+                extract(table.intern(method), method, MethodTable.LOCAL);
+                if (frontier.add(method)) {
+                    worklist.add(method);
+                }
+            }
+        }
 
-        for (String lib : libs) {
-            if (pack.startsWith(lib)) {
-                return true;
+        // callers reached through library code are not propagated to by
+        // a full run either, so the walk stops there
+        while (!worklist.isEmpty()) {
+            SootMethod sm = worklist.poll();
+            Iterator<Edge> it = cg.edgesInto(sm);
+            while (it.hasNext()) {
+                SootMethod caller = it.next().src();
+                if (caller != null && !LibraryFilter.v().isLibraryClass(caller.getDeclaringClass()) &&
+                        frontier.add(caller)) {
+                    worklist.add(caller);
+                }
             }
         }
 
-        return false;
+        for (SootMethod sm : frontier) {
+            table.clearPropagated(table.intern(sm));
+        }
+        Logger.info(StaticAnalyzer.class, "Propagating invocations through " + frontier.size() + " affected methods");
+        PropagationEngine engine = new PropagationEngine(this.cg, this);
+        engine.propagate(frontier, frontier);
+        return frontier;
+    }
+
+    /**
+     * @return Application classes that are not library classes.
+     */
+    static List<SootClass> applicationClasses () {
+        List<SootClass> classes = new ArrayList<SootClass>();
+        for (SootClass sclass : Scene.v().getApplicationClasses()) {
+            if (!LibraryFilter.v().isLibraryClass(sclass)) {
+                classes.add(sclass);
+            }
+        }
+        return classes;
     }
 
     /**
      * Iterates over all application classes and methods, and create an
      * Feature object for each method.
+     * @param cache Feature cache to restore unchanged classes from, or null.
      */
-    private void generalFeatureExtraction () {
-        Logger.log("Counting how many calls each method does");
-        Chain<SootClass> classes = Scene.v().getApplicationClasses();
-        try {
+    void generalFeatureExtraction (FeatureCache cache) {
+        extractFeatures(cache, applicationClasses());
+    }
+
+    /**
+     * Creates the Feature objects of the methods of the given classes.
+     * @param cache Feature cache to restore unchanged classes from, or null.
+     * @param classes Classes to be analyzed.
+     */
+    void extractFeatures (FeatureCache cache, List<SootClass> classes) {
+        Logger.info(StaticAnalyzer.class, "Counting how many calls each method does");
+        if (cache != null) {
+            List<SootClass> changed = new ArrayList<SootClass>();
             for (SootClass sclass : classes) {
-                if (!isLibraryClass(sclass)) {
-                    System.out.println(ConsoleColors.RED_UNDERLINED + "\n\n 🔍🔍 Checking invocations in " +
-                    sclass.getName() + " 🔍🔍 " + ConsoleColors.RESET);
-                    List<SootMethod> methods = sclass.getMethods();
-                    for (SootMethod method : methods) {
-                        featuresMap.put(method, new Features(method));
-                    }
+                if (cache.isUpToDate(sclass)) {
+                    cache.restore(sclass, table, false);
+                } else {
+                    changed.add(sclass);
                 }
             }
-        } catch (Exception e) {            
+            Logger.info(StaticAnalyzer.class, (classes.size() - changed.size()) + " classes restored from cache, " +
+                changed.size() + " to be analyzed");
+            classes = changed;
         }
-        System.out.println("\n");
-    }
 
-    /**
-     * Traverses the CG and propagates the invocation count from each callee to its callers.
-     */
-    private void propagateFeatures () {
-        Logger.log("Propagating invocations through the Call Graph - DFS");
-        Set<SootMethod> calculated = new HashSet<SootMethod>();
-        Chain<SootClass> classes = Scene.v().getApplicationClasses();
-        SootClass c = null;
-        SootMethod m = null;
-        try {
+        int threads = AnalysisOptions.v().threads();
+        if (threads > 1) {
+            parallelFeatureExtraction(classes, threads);
+        } else {
             for (SootClass sclass : classes) {
-                c = sclass;
+                Logger.debug(StaticAnalyzer.class, "Checking invocations in %s", sclass.getName());
                 List<SootMethod> methods = sclass.getMethods();
                 for (SootMethod method : methods) {
-                    m = method;
-                    if (!calculated.contains(method)) {
-                        propagateFeatures(method, calculated);
+                    int id = table.intern(method);
+                    try {
+                        extract(id, method, MethodTable.LOCAL);
+                        resolve(id);
+                    } catch (RuntimeException e) {
+                        // the method keeps whatever was stored for it, the others go on
+                        Logger.error(StaticAnalyzer.class, "Extraction of " + method.getSignature() +
+                            " failed: " + e);
                     }
                 }
             }
-        } catch (Exception e) {
-            // handling
         }
     }
 
-    private void propagateFeatures (SootMethod sm, Set<SootMethod> calculated) {
-        if (sm.isPhantom()) {
-            return;
+    /**
+     * @return The feature cache given on the command line, loaded, or null.
+     */
+    private static FeatureCache openCache () {
+        String path = AnalysisOptions.v().cacheFile();
+        if (path == null) {
+            return null;
         }
-        Features propagated = getFeatures(sm);
-        Chain<Unit> units = sm.retrieveActiveBody().getUnits();
-        Map<Unit, Integer> unitDepth = calculateInstructionDepth(sm);
-        for (Unit u : units) {
-            if (u instanceof Stmt) {
-                Stmt s = (Stmt) u;
-                if (s.containsInvokeExpr()) {
-                    Iterator<Edge> it = this.cg.edgesOutOf(u);
-                    while (it.hasNext()) {
-                        Edge e = it.next();
-                        SootMethod tgt = e.tgt();
-
-                        if (!calculated.contains(tgt) &&
-                                !isLibraryClass(tgt.getDeclaringClass())) {
-                            calculated.add(tgt);
-                            propagateFeatures(tgt, calculated);
-                        }
+        FeatureCache cache = new FeatureCache(new File(path));
+        cache.load();
+        return cache;
+    }
 
-                        int depth = unitDepth.getOrDefault(u, 0);
-                        Features features = getFeatures(tgt);
-                        propagated.addFeaturesFrom(features, depth);
-                        propagatedFeaturesMap.put(sm, propagated);
-
-                        if (!tgt.getDeclaringClass().getPackageName().startsWith("java") &&
-                               !tgt.getDeclaringClass().getPackageName().startsWith("jdk") &&
-                               !tgt.getDeclaringClass().getPackageName().startsWith("sun")) {
-                           System.out.println("    Propagated from: " + tgt.getSubSignature() + " to " +
-                           sm.getSubSignature() + "[call depth = " + depth + "]");
-                       }
-                    }
-                }
-            }
+    /**
+     * Creates the Feature objects of all methods of the given classes using
+     * a pool of worker threads. Each method is analyzed independently.
+     * @param classes Classes to be analyzed.
+     * @param threads Number of worker threads.
+     */
+    private void parallelFeatureExtraction (List<SootClass> classes, int threads) {
+        final List<SootMethod> methods = new ArrayList<SootMethod>();
+        for (SootClass sclass : classes) {
+            methods.addAll(sclass.getMethods());
+        }
+        preloadBodies(methods);
+        // rows are assigned up front, each worker then fills its own
+        final int[] ids = new int[methods.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = table.intern(methods.get(i));
         }
 
-        calculated.add(sm);
+        Logger.info(StaticAnalyzer.class, "Extracting features of " + methods.size() + " methods on " + threads + " threads");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, ids.length).parallel().forEach(
+                i -> extract(ids[i], methods.get(i), MethodTable.LOCAL))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        // interning is serial, targets are resolved once workers are done
+        for (int id : ids) {
+            resolve(id);
+        }
     }
 
     /**
-     * Calculates the depth of each instruction in the LoopNestTree obj.
-     * @param sm Input method, from which will be calculated instruction depth.
-     * @return A Map<Unit, Integer> containing the depth of each unit.
+     * Builds the active body of each method and resolves its call targets,
+     * so that parallel workers only read from the Scene.
+     * @param methods Methods to be loaded.
      */
-    private Map<Unit, Integer> calculateInstructionDepth (SootMethod sm) {
-        // First we analyze all Units (statements) within loops
-        Body body = sm.retrieveActiveBody();
-        LoopNestTree loopNestTree = new LoopNestTree(body);
-        Map<Unit, Integer> idepth = new HashMap<Unit, Integer>();
-
-        if (!loopNestTree.isEmpty()) {
-            for (Loop initloop : loopNestTree) {
-                int depth = 1;
-                Loop loop = loopNestTree.higher(initloop);
-                //
-                // walk on the tree up to the root, so we can define our
-                // nested level
-                while (loop != null) {
-                    depth++;
-                    loop = loopNestTree.higher(loop);
-                }
-                List<Stmt> loopBody = initloop.getLoopStatements();
-                for (Stmt s : loopBody) {
-                    Integer currentDepth = idepth.getOrDefault(s, 1);
-                    if (depth >= currentDepth) {
-                        idepth.put(s, depth);
+    static void preloadBodies (List<SootMethod> methods) {
+        for (SootMethod method : methods) {
+            if (!method.isConcrete()) {
+                continue;
+            }
+            try {
+                for (Unit u : method.retrieveActiveBody().getUnits()) {
+                    Stmt s = (Stmt) u;
+                    if (s.containsInvokeExpr()) {
+                        s.getInvokeExpr().getMethod();
                     }
                 }
+            } catch (RuntimeException e) {
+                // the worker will report the failure when building the features
             }
         }
-        return idepth;
+    }
+
+    /**
+     * Traverses the CG and propagates the invocation count from each callee to its callers.
+     * @return Number of methods whose propagated features were written.
+     */
+    int propagateFeatures () {
+        Logger.info(StaticAnalyzer.class, "Propagating invocations through the Call Graph - SCC");
+        List<SootMethod> roots = new ArrayList<SootMethod>();
+        for (SootClass sclass : Scene.v().getApplicationClasses()) {
+            roots.addAll(sclass.getMethods());
+        }
+        PropagationEngine engine = new PropagationEngine(this.cg, this);
+        return engine.propagate(roots);
     }
 
     /**
@@ -221,17 +344,111 @@ public class StaticAnalyzer {
      * @return Features object.
      */
     public Features getFeatures (SootMethod method) {
-        if (propagatedFeaturesMap.containsKey(method)) {
-            return propagatedFeaturesMap.get(method);
-        } else if (featuresMap.containsKey(method)) {
-            return featuresMap.get(method);
-        } else if (featuresLibMap.containsKey(method)) {
-            return featuresLibMap.get(method);
-        } else {
-            Features features = new Features(method);
-            featuresLibMap.put(method, features);
-            return features;
+        return table.features(localId(method));
+    }
+
+    /**
+     * Returns the Features object of a given method, ignoring any value
+     * propagated from its callees.
+     * @param method Method which features are required.
+     * @return Features object.
+     */
+    Features getLocalFeatures (SootMethod method) {
+        return table.local(localId(method));
+    }
+
+    /**
+     * Returns the table row of a method, extracting its features first if
+     * it has none yet. Not thread safe.
+     * @param method Input method.
+     * @return Id of the method in the table.
+     */
+    int localId (SootMethod method) {
+        int id = table.intern(method);
+        ensureLocal(id);
+        return id;
+    }
+
+    /**
+     * Extracts the features of an interned method if it has none yet. Not
+     * thread safe.
+     * @param id Row of the method.
+     */
+    void ensureLocal (int id) {
+        if (!table.has(id, (byte) (MethodTable.LOCAL | MethodTable.LIBRARY))) {
+            extract(id, table.method(id), MethodTable.LIBRARY);
+        }
+    }
+
+    /**
+     * Extracts the local features of a method into its row. In low memory
+     * mode its outgoing edges are summarized and its body is released.
+     * Distinct rows may be extracted concurrently.
+     * @param id Row of the method.
+     * @param method Input method.
+     * @param flag LOCAL for application methods, LIBRARY otherwise.
+     */
+    private void extract (int id, SootMethod method, byte flag) {
+        try (PhaseProfiler.Phase p = PhaseProfiler.v().begin(phase, method)) {
+            table.setLocal(id, new Features(method, this.cg), flag);
+        }
+        if (AnalysisOptions.v().lowMemory() && method.hasActiveBody()) {
+            release(id, method);
+        }
+    }
+
+    /**
+     * Returns the outgoing edges of a method, with their targets resolved.
+     * Methods restored from the cache have no summary and their body is
+     * scanned here. Not thread safe.
+     * @param id Row of the method.
+     * @return Summary of the method.
+     */
+    CallSummary summary (int id) {
+        CallSummary summary = table.summary(id);
+        if (summary == null) {
+            SootMethod method = table.method(id);
+            summary = CallSummary.of(this.cg, method);
+            table.setSummary(id, summary);
+            if (AnalysisOptions.v().lowMemory()) {
+                release(id, method);
+            }
         }
+        summary.resolve(table);
+        return summary;
+    }
+
+    /**
+     * Interns the targets of the summary of a method, if it has one.
+     * @param id Row of the method.
+     */
+    private void resolve (int id) {
+        CallSummary summary = table.summary(id);
+        if (summary != null) {
+            summary.resolve(table);
+        }
+    }
+
+    /**
+     * Keeps the summary of a method and drops its body and loop depths.
+     * @param id Row of the method.
+     * @param method Input method.
+     */
+    private void release (int id, SootMethod method) {
+        try {
+            if (table.summary(id) == null) {
+                table.setSummary(id, CallSummary.of(this.cg, method));
+            }
+        } catch (RuntimeException e) {
+            // the body is still released, the method becomes a leaf
+            table.setSummary(id, CallSummary.EMPTY);
+        }
+        method.releaseActiveBody();
+        LoopDepthIndex.v().evict(method);
+    }
+
+    MethodTable table () {
+        return table;
     }
 
     public void dumpIR () {
@@ -279,11 +496,28 @@ public class StaticAnalyzer {
      * for each category of interest.
      */
     public void printFeaturesMap () {
-        Logger.log("Printing Feature Map");
-        for (Map.Entry<SootMethod, Features> entry :
-                                            propagatedFeaturesMap.entrySet()) {
-            SootMethod method = entry.getKey();
-            Features features = entry.getValue();
+        try (PhaseProfiler.Phase output = PhaseProfiler.v().begin("output")) {
+            output.count(table.size());
+            if (AnalysisOptions.v().outputFile() != null) {
+                writeFeaturesMap(AnalysisOptions.v().outputFile(), AnalysisOptions.v().outputFormat());
+            } else {
+                printFeaturesReport();
+            }
+        }
+    }
+
+    /**
+     * Prints the colored console report.
+     */
+    private void printFeaturesReport () {
+        Logger.info(StaticAnalyzer.class, "Printing Feature Map");
+        Logger.flush();
+        for (int id = 0; id < table.size(); id++) {
+            if (!table.has(id, MethodTable.PROPAGATED)) {
+                continue;
+            }
+            SootMethod method = table.method(id);
+            Features features = table.features(id);
             String m = method.getSignature().toString();
             if (m.contains(" benchmark(") || m.contains(" runIteration(")) {
                 System.out.println(ConsoleColors.RED_BACKGROUND_BRIGHT + "Method: " + method.getSignature() + 
@@ -297,13 +531,46 @@ public class StaticAnalyzer {
 
         System.out.println("\n");
 
-        for (Map.Entry<SootMethod, Features> entry : featuresMap.entrySet()) {
-            SootMethod method = entry.getKey();
-            if (!propagatedFeaturesMap.containsKey(method)) {
-                Features features = entry.getValue();
+        for (int id = 0; id < table.size(); id++) {
+            if (table.has(id, MethodTable.LOCAL) && !table.has(id, MethodTable.PROPAGATED)) {
+                SootMethod method = table.method(id);
+                Features features = table.local(id);
                 System.out.println("Method not propagated: " + method.getSignature() + " :: "
                  + Long.toString(features.staticInvokations) + " | " + Long.toString(features.approxDynamicInvokations));
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Streams the local and propagated features of every method to a file.
+     * Application methods come first, in class order.
+     * @param path Output file, "-" for the standard output.
+     * @param format Output format.
+     */
+    public void writeFeaturesMap (String path, FeatureWriter.Format format) {
+        Logger.info(StaticAnalyzer.class, "Writing Feature Map to " + path);
+        boolean[] written = new boolean[table.size()];
+        try (FeatureWriter writer = FeatureWriter.open(path, format)) {
+            for (SootClass sclass : Scene.v().getApplicationClasses()) {
+                for (SootMethod method : sclass.getMethods()) {
+                    int id = table.id(method);
+                    if (id >= 0 && table.has(id, (byte) (MethodTable.LOCAL | MethodTable.PROPAGATED))) {
+                        writeFeatures(writer, id);
+                        written[id] = true;
+                    }
+                }
+            }
+            for (int id = 0; id < written.length; id++) {
+                if (!written[id] && table.has(id, MethodTable.PROPAGATED)) {
+                    writeFeatures(writer, id);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error(StaticAnalyzer.class, "Could not write features to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void writeFeatures (FeatureWriter writer, int id) throws IOException {
+        writer.write(table.method(id).getSignature(), table.local(id), table.features(id));
+    }
+}
@@ -2,68 +2,229 @@ package sootparser.utils;
 
 
 /**
- * Outputs messages to standard/error outputs logging the calling method.
+ * Outputs messages to standard/error outputs tagged with the calling class.
+ *
+ * Messages have a level and are dropped before being formatted when the
+ * level is off. The caller is given explicitly, the stack is never walked.
+ * Enabled messages go through a bounded ring buffer to a single writer
+ * thread, so logging never blocks on the terminal and can be done from any
+ * thread; a producer only waits when the ring is full. Call flush() before
+ * printing directly to the standard output, so lines do not interleave.
+ *
+ * Arguments are formatted later, by the writer thread: pass strings or
+ * boxed numbers, never objects that may change in the meantime, and check
+ * enabled() first where building the arguments costs anything.
  * @author juniocezar
  */
 public class Logger {
     /**
-     * Represents stack depth according to caller.
+     * Message levels, each one also enables the ones before it. Their
+     * ordinals match the verbosity levels of the analysis options.
      */
-    private static int pos = 0;
-    /**
-     * Indicates if the logger is being called for the fist time.
-     */
-    private static boolean first = true;
+    public enum Level { ERROR, INFO, DEBUG, TRACE }
 
     /**
      * Identifies the operating system being used to execute this code.
      */
     final static String OS = System.getProperty("os.name").toLowerCase();
-    static boolean isUnix = false;
+    static final boolean isUnix = OS.contains("nix") || OS.contains("nux") || OS.contains("aix");
 
     // unix terminal colors
     private static final String ANSI_RESET = "\u001B[0m";
-    private static final String ANSI_BLACK = "\u001B[30m";
     private static final String ANSI_RED = "\u001B[31m";
-    private static final String ANSI_GREEN = "\u001B[32m";
     private static final String ANSI_YELLOW = "\u001B[33m";
-    private static final String ANSI_BLUE = "\u001B[34m";
-    private static final String ANSI_PURPLE = "\u001B[35m";
-    private static final String ANSI_CYAN = "\u001B[36m";
     private static final String ANSI_WHITE = "\u001B[37m";
 
+    private static final int CAPACITY = 4096;
+
     /**
-     * Prints message to standard output
-     * @param msg Text to print
+     * Most verbose level printed.
      */
-    public static void show(String msg) {
-        if (first) {
-            System.out.println("\n================ Initializing Tool ================\n");
-            first = false;
-            if (OS.contains("nix") || OS.contains("nux") || OS.contains("aix")) {
-                isUnix = true;
-            }
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    /**
+     * A message waiting to be written, formatted by the writer thread.
+     */
+    private static class Record {
+        Level level;
+        String tag;
+        String format;
+        Object[] args;
+    }
+
+    // ring buffer shared by every producer and the writer, guarded by lock
+    private static final Object lock = new Object();
+    private static final Record[] ring = new Record[CAPACITY];
+    private static int head = 0;
+    private static int count = 0;
+    // records ever enqueued and written, flush() waits for them to match
+    private static long enqueued = 0;
+    private static long written = 0;
+    private static Thread writer = null;
+
+    /**
+     * @param level Most verbose level to be printed.
+     */
+    public static void setLevel (Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * @param verbosity Most verbose level to be printed, as an ordinal of Level.
+     */
+    public static void setLevel (int verbosity) {
+        threshold = verbosity;
+    }
+
+    /**
+     * Checks a level before doing any work needed only by its messages.
+     * @param level Message level.
+     * @return true if messages of the level are printed.
+     */
+    public static boolean enabled (Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    public static void error (Class<?> caller, String format, Object... args) {
+        enqueue(Level.ERROR, caller, format, args);
+    }
+
+    public static void info (Class<?> caller, String format, Object... args) {
+        enqueue(Level.INFO, caller, format, args);
+    }
+
+    public static void debug (Class<?> caller, String format, Object... args) {
+        enqueue(Level.DEBUG, caller, format, args);
+    }
+
+    public static void trace (Class<?> caller, String format, Object... args) {
+        enqueue(Level.TRACE, caller, format, args);
+    }
+
+    /**
+     * Queues a message. Without arguments, the format is printed as is.
+     * @param level Message level.
+     * @param caller Class logging the message.
+     * @param format Message, or a format string for String.format.
+     * @param args Arguments of the format.
+     */
+    private static void enqueue (Level level, Class<?> caller, String format, Object[] args) {
+        if (!enabled(level)) {
+            return;
         }
+        Record record = new Record();
+        record.level = level;
+        record.tag = caller.getName();
+        record.format = format;
+        record.args = args;
 
-        StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-        String callerClass  = stackTraceElements[2+pos].getClassName();
-        String callerMethod = stackTraceElements[2+pos].getMethodName();
+        synchronized (lock) {
+            if (writer == null) {
+                startWriter();
+            }
+            while (count == CAPACITY) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            ring[(head + count) % CAPACITY] = record;
+            count++;
+            enqueued++;
+            lock.notifyAll();
+        }
+    }
 
-        if (isUnix) {
-            System.out.println(ANSI_YELLOW + callerClass + "." + callerMethod +
-                ANSI_RED + " - " + ANSI_WHITE + msg + ANSI_RESET);
-        } else {
-            System.out.println(callerClass + "." + callerMethod + " - " + msg);
+    /**
+     * Waits until every message queued so far was written.
+     */
+    public static void flush () {
+        synchronized (lock) {
+            long target = enqueued;
+            while (written < target) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static void startWriter () {
+        System.out.println("\n================ Initializing Tool ================\n");
+        writer = new Thread(new Runnable() {
+            public void run () {
+                drain();
+            }
+        }, "logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run () {
+                flush();
+            }
+        }));
     }
+
     /**
-     * Prints message to standard output
-     * @param msg Text to print
+     * Writer loop: takes every pending record at once and prints them
+     * outside of the lock.
      */
-    public static void log(String msg) {
-        pos = 1;
-        show(msg);
-        pos = 0;
+    private static void drain () {
+        Record[] batch = new Record[CAPACITY];
+        while (true) {
+            int n;
+            synchronized (lock) {
+                while (count == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                n = count;
+                for (int i = 0; i < n; i++) {
+                    batch[i] = ring[(head + i) % CAPACITY];
+                    ring[(head + i) % CAPACITY] = null;
+                }
+                head = (head + n) % CAPACITY;
+                count = 0;
+                lock.notifyAll();
+            }
+
+            for (int i = 0; i < n; i++) {
+                write(batch[i]);
+                batch[i] = null;
+            }
+            System.out.flush();
+
+            synchronized (lock) {
+                written += n;
+                lock.notifyAll();
+            }
+        }
     }
 
-}
\ No newline at end of file
+    private static void write (Record record) {
+        String msg;
+        try {
+            msg = record.args.length == 0 ? record.format : String.format(record.format, record.args);
+        } catch (RuntimeException e) {
+            msg = record.format;
+        }
+
+        if (record.level == Level.ERROR) {
+            System.err.println(record.tag + " - " + msg);
+        } else if (isUnix) {
+            System.out.println(ANSI_YELLOW + record.tag + ANSI_RED + " - " + ANSI_WHITE + msg + ANSI_RESET);
+        } else {
+            System.out.println(record.tag + " - " + msg);
+        }
+    }
+}